@@ -0,0 +1,334 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keep track of how far a run of PkgCheck has got, so that if it's
+ * interrupted it can carry on where it left off.
+ *
+ * Results are printed in the same order every time PkgCheck is run with
+ * the same arguments, so progress is recorded as the number of results
+ * printed so far. As each result is printed, what was found is appended
+ * to the checkpoint file, along with a marker giving the number of
+ * results done, and the file is flushed every second or so and when the
+ * JVM shuts down. A later run with the same arguments reads the
+ * checkpoint back and, rather than checking those entries again, reports
+ * what was found for them before. Anything written after the last
+ * complete marker is ignored, and checked again. When a run completes,
+ * the checkpoint file is removed.
+ *
+ * The journal is only saved at the end of a run, so with -J the state
+ * and result recorded in the journal for each path are kept here too,
+ * and given to the journal again when the run is resumed. Otherwise a
+ * full check would forget those paths, and report their drift again.
+ *
+ * If the checkpoint was written by a run with different arguments, or
+ * against a different contents file, it is ignored and the run starts
+ * from the beginning, as the results would no longer line up with the
+ * entries being checked.
+ */
+public class CheckCheckpoint {
+
+    private static final String MAGIC = "pkgview check checkpoint";
+    private static final int VERSION = 3;
+
+    private static final long FLUSH_NANOS = 1000000000L;
+
+    // a record for a result, its journal entry, and the number done
+    private static final byte FINDING = 'F';
+    private static final byte JOURNAL = 'J';
+    private static final byte MARKER = 'N';
+
+    private final File f;
+    private DataOutputStream dos;
+    private long nextFlush;
+    // the number of results done by an earlier run
+    private int resumed;
+    // the number done, and the number recorded by the last marker
+    private int ndone;
+    private int marked;
+    // what was found by an earlier run, by result
+    private Map <Integer, List <CheckOutput.Finding>> found
+	= new HashMap <Integer, List <CheckOutput.Finding>> ();
+    // and what it recorded in the journal, the state and result
+    private Map <Integer, long[]> journalled = new HashMap <Integer, long[]> ();
+
+    private CheckCheckpoint(File f) {
+	this.f = f;
+    }
+
+    /**
+     * Open a checkpoint, reading back any progress made by an earlier
+     * run with the same arguments.
+     *
+     * @param f the checkpoint file
+     * @param key identifies the run, normally its arguments and the
+     * state of the contents file
+     *
+     * @return the CheckCheckpoint
+     *
+     * @throws IOException if the checkpoint can't be written
+     */
+    public static CheckCheckpoint open(File f, String key)
+		throws IOException {
+	CheckCheckpoint cc = new CheckCheckpoint(f);
+	if (f.exists()) {
+	    cc.read(key);
+	}
+	cc.write(key);
+	return cc;
+    }
+
+    private void read(String key) {
+	try {
+	    DataInputStream dis = new DataInputStream(
+		new BufferedInputStream(new FileInputStream(f), 65536));
+	    try {
+		if (!MAGIC.equals(dis.readUTF()) || dis.readInt() != VERSION
+			|| !key.equals(dis.readUTF())) {
+		    return;
+		}
+		// only keep results covered by a marker
+		Map <Integer, List <CheckOutput.Finding>> pending
+		    = new HashMap <Integer, List <CheckOutput.Finding>> ();
+		Map <Integer, long[]> jpending
+		    = new HashMap <Integer, long[]> ();
+		while (true) {
+		    byte type = dis.readByte();
+		    if (type == FINDING) {
+			int seq = dis.readInt();
+			List <CheckOutput.Finding> l = pending.get(seq);
+			if (l == null) {
+			    l = new ArrayList <CheckOutput.Finding> (2);
+			    pending.put(seq, l);
+			}
+			String path = readString(dis);
+			l.add(new CheckOutput.Finding(dis.readByte(),
+				dis.readUTF(), path, readString(dis),
+				readString(dis), dis.readUTF()));
+		    } else if (type == JOURNAL) {
+			int seq = dis.readInt();
+			long state = dis.readLong();
+			jpending.put(seq, new long[] {state, dis.readByte()});
+		    } else if (type == MARKER) {
+			resumed = dis.readInt();
+			found.putAll(pending);
+			pending.clear();
+			journalled.putAll(jpending);
+			jpending.clear();
+		    } else {
+			return;
+		    }
+		}
+	    } finally {
+		dis.close();
+	    }
+	} catch (EOFException eofe) {
+	    // the end, possibly part way through a record
+	} catch (IOException ioe) {
+	    // keep whatever we could read
+	}
+    }
+
+    /*
+     * Start a new checkpoint file holding everything read from the old
+     * one, so that a record cut short at the end of the old one isn't
+     * followed by new ones.
+     */
+    private void write(String key) throws IOException {
+	File tmpf = new File(f.getPath() + ".tmp");
+	dos = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(tmpf), 65536));
+	dos.writeUTF(MAGIC);
+	dos.writeInt(VERSION);
+	dos.writeUTF(key);
+	for (Map.Entry <Integer, List <CheckOutput.Finding>> me
+		: found.entrySet()) {
+	    for (CheckOutput.Finding cf : me.getValue()) {
+		writeFinding(me.getKey(), cf);
+	    }
+	}
+	for (Map.Entry <Integer, long[]> me : journalled.entrySet()) {
+	    writeJournal(me.getKey(), me.getValue()[0], (int) me.getValue()[1]);
+	}
+	ndone = resumed;
+	writeMarker();
+	dos.flush();
+	if (!tmpf.renameTo(f)) {
+	    dos.close();
+	    tmpf.delete();
+	    throw new IOException("Unable to rename " + tmpf);
+	}
+	nextFlush = System.nanoTime() + FLUSH_NANOS;
+    }
+
+    /**
+     * Return the number of results done by an earlier run. Those results
+     * needn't be checked again.
+     *
+     * @return the number of results already done
+     */
+    public int getResumed() {
+	return resumed;
+    }
+
+    /**
+     * Return what an earlier run found.
+     *
+     * @param seq the position of the result in the output
+     *
+     * @return the findings for the result, or null if there weren't any
+     */
+    public List <CheckOutput.Finding> getFindings(int seq) {
+	return found.get(seq);
+    }
+
+    /**
+     * Give the journal what an earlier run recorded in it for a result.
+     * If it recorded nothing, the path is still kept in the journal.
+     *
+     * @param seq the position of the result in the output
+     * @param name the path name
+     * @param journal the journal
+     */
+    public void journal(int seq, String name, CheckJournal journal) {
+	long[] entry = journalled.get(seq);
+	if (entry == null) {
+	    journal.touch(name);
+	} else {
+	    journal.record(name, entry[0], (int) entry[1]);
+	}
+    }
+
+    /**
+     * Record that a result has been printed, along with all those
+     * before it.
+     *
+     * @param seq the position of the result in the output
+     * @param findings what was found, which may be null
+     * @param state the state recorded in the journal, if any
+     * @param result the result recorded in the journal, or
+     * CheckJournal.UNKNOWN if nothing was recorded
+     */
+    public synchronized void done(int seq,
+		List <CheckOutput.Finding> findings, long state, int result) {
+	if (dos == null) {
+	    return;
+	}
+	try {
+	    if (findings != null) {
+		for (CheckOutput.Finding cf : findings) {
+		    writeFinding(seq, cf);
+		}
+	    }
+	    if (result != CheckJournal.UNKNOWN) {
+		writeJournal(seq, state, result);
+	    }
+	    ndone = seq + 1;
+	    if (System.nanoTime() > nextFlush) {
+		writeMarker();
+		dos.flush();
+		nextFlush = System.nanoTime() + FLUSH_NANOS;
+	    }
+	} catch (IOException ioe) {
+	    // a checkpoint isn't worth failing the check for
+	    close();
+	}
+    }
+
+    /**
+     * Write out everything recorded so far, and stop recording.
+     */
+    public synchronized void close() {
+	if (dos != null) {
+	    try {
+		writeMarker();
+		dos.close();
+	    } catch (IOException ioe) {
+		// nothing we can do
+	    }
+	    dos = null;
+	}
+    }
+
+    /**
+     * The run has completed, so the checkpoint is no longer needed.
+     */
+    public synchronized void finish() {
+	close();
+	f.delete();
+    }
+
+    private void writeMarker() throws IOException {
+	if (ndone > marked || marked == 0) {
+	    dos.writeByte(MARKER);
+	    dos.writeInt(ndone);
+	    marked = ndone;
+	}
+    }
+
+    private void writeFinding(int seq, CheckOutput.Finding cf)
+		throws IOException {
+	dos.writeByte(FINDING);
+	dos.writeInt(seq);
+	writeString(cf.path);
+	dos.writeByte(cf.level);
+	dos.writeUTF(cf.kind);
+	writeString(cf.expected);
+	writeString(cf.actual);
+	dos.writeUTF(cf.text);
+    }
+
+    private void writeJournal(int seq, long state, int result)
+		throws IOException {
+	dos.writeByte(JOURNAL);
+	dos.writeInt(seq);
+	dos.writeLong(state);
+	dos.writeByte(result);
+    }
+
+    private void writeString(String s) throws IOException {
+	dos.writeBoolean(s != null);
+	if (s != null) {
+	    dos.writeUTF(s);
+	}
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+	return dis.readBoolean() ? dis.readUTF() : null;
+    }
+}
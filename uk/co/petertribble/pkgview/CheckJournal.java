@@ -0,0 +1,363 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A record of the paths checked by PkgCheck, so that paths that haven't
+ * changed since the last run needn't be checked again.
+ *
+ * For each path the journal holds the result of the check and a hash
+ * of the state it was checked in: the device, inode, size, and change
+ * time of the path, the entry in the contents file it was checked
+ * against, and whether its checksum was compared. Hard links aren't
+ * recorded, as whether they're correct depends on another path. Any
+ * change to the file, including to its owner, permissions, or
+ * timestamps, updates the change time, so if the state hash matches,
+ * the result still holds.
+ *
+ * To keep the journal small, paths are also held as a 64-bit hash, so
+ * each path takes 17 bytes on disk. The journal is saved as flat arrays
+ * that can be read straight back, and the hash index is rebuilt on
+ * loading, which takes a few milliseconds even for a million paths.
+ */
+public class CheckJournal {
+
+    private static final String MAGIC = "pkgview check journal";
+
+    /*
+     * Increment this whenever the layout of the journal, or the way the
+     * hashes are calculated, changes.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The path was checked and no drift was found.
+     */
+    public static final int CLEAN = 0;
+
+    /**
+     * The path was checked and drift was reported.
+     */
+    public static final int DRIFT = 1;
+
+    /**
+     * The path isn't in the journal, or has changed since it was checked.
+     */
+    public static final int UNKNOWN = -1;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private int count;
+    private long[] paths;
+    private long[] states;
+    private byte[] results;
+    // rows looked up or recorded in this run
+    private BitSet touched = new BitSet();
+
+    // open addressing hash of path hash to row, empty slots are -1
+    private int[] index;
+
+    /**
+     * Create an empty journal.
+     */
+    public CheckJournal() {
+	this(1024);
+    }
+
+    private CheckJournal(int capacity) {
+	capacity = Math.max(capacity, 16);
+	paths = new long[capacity];
+	states = new long[capacity];
+	results = new byte[capacity];
+	index = new int[Integer.highestOneBit(capacity)*4];
+	Arrays.fill(index, -1);
+    }
+
+    /**
+     * Load a journal saved by save(). If the file doesn't exist or
+     * can't be read, an empty journal is returned, and everything will
+     * be checked.
+     *
+     * @param f the file holding the journal
+     *
+     * @return the CheckJournal
+     */
+    public static CheckJournal load(File f) {
+	if (!f.exists()) {
+	    return new CheckJournal();
+	}
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(f, "r");
+	    try {
+		FileChannel fc = raf.getChannel();
+		ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0,
+					fc.size());
+		return read(buf);
+	    } finally {
+		raf.close();
+	    }
+	} catch (IOException ioe) {
+	    return new CheckJournal();
+	} catch (RuntimeException re) {
+	    // truncated or otherwise damaged
+	    return new CheckJournal();
+	}
+    }
+
+    private static CheckJournal read(ByteBuffer buf) throws IOException {
+	byte[] b = new byte[MAGIC.length()];
+	buf.get(b);
+	if (!MAGIC.equals(new String(b, "UTF-8"))
+		|| buf.getInt() != VERSION) {
+	    return new CheckJournal();
+	}
+	int n = buf.getInt();
+	CheckJournal cj = new CheckJournal(n*4/3);
+	buf.asLongBuffer().get(cj.paths, 0, n);
+	buf.position(buf.position() + 8*n);
+	buf.asLongBuffer().get(cj.states, 0, n);
+	buf.position(buf.position() + 8*n);
+	buf.get(cj.results, 0, n);
+	cj.count = n;
+	for (int row = 0; row < n; row++) {
+	    cj.putIndex(row);
+	}
+	return cj;
+    }
+
+    /**
+     * Save the journal, replacing any previous copy. The journal is
+     * written to a temporary file and renamed into place, so a run that's
+     * interrupted leaves the previous journal intact.
+     *
+     * @param f the file to save the journal in
+     * @param prune if true, only save the paths that were looked up or
+     * recorded in this run, so that paths that have gone away are dropped
+     *
+     * @throws IOException if the journal couldn't be saved
+     */
+    public synchronized void save(File f, boolean prune) throws IOException {
+	File dir = f.getAbsoluteFile().getParentFile();
+	File tmpf = File.createTempFile("journal", ".tmp", dir);
+	try {
+	    DataOutputStream dos = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(tmpf), 65536));
+	    try {
+		dos.write(MAGIC.getBytes("UTF-8"));
+		dos.writeInt(VERSION);
+		int n = prune ? touched.cardinality() : count;
+		dos.writeInt(n);
+		for (int row = 0; row < count; row++) {
+		    if (!prune || touched.get(row)) {
+			dos.writeLong(paths[row]);
+		    }
+		}
+		for (int row = 0; row < count; row++) {
+		    if (!prune || touched.get(row)) {
+			dos.writeLong(states[row]);
+		    }
+		}
+		for (int row = 0; row < count; row++) {
+		    if (!prune || touched.get(row)) {
+			dos.write(results[row]);
+		    }
+		}
+	    } finally {
+		dos.close();
+	    }
+	    Files.move(tmpf.toPath(), f.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	    tmpf = null;
+	} finally {
+	    if (tmpf != null) {
+		tmpf.delete();
+	    }
+	}
+    }
+
+    /**
+     * Return the result of the previous check of a path, if it was
+     * checked in the same state.
+     *
+     * @param name the path name
+     * @param state the current state of the path, from state()
+     *
+     * @return CLEAN or DRIFT if the path was last checked in the same
+     * state, otherwise UNKNOWN
+     */
+    public synchronized int lookup(String name, long state) {
+	int row = find(hash(name));
+	if (row < 0) {
+	    return UNKNOWN;
+	}
+	touched.set(row);
+	return (states[row] == state) ? results[row] : UNKNOWN;
+    }
+
+    /**
+     * Keep a path that wasn't checked in this run, so that saving the
+     * journal with prune doesn't forget it.
+     *
+     * @param name the path name
+     */
+    public synchronized void touch(String name) {
+	int row = find(hash(name));
+	if (row >= 0) {
+	    touched.set(row);
+	}
+    }
+
+    /**
+     * Record the result of checking a path.
+     *
+     * @param name the path name
+     * @param state the state the path was checked in, from state()
+     * @param result CLEAN or DRIFT
+     */
+    public synchronized void record(String name, long state, int result) {
+	long h = hash(name);
+	int row = find(h);
+	if (row < 0) {
+	    if (count == paths.length) {
+		grow();
+	    }
+	    row = count++;
+	    paths[row] = h;
+	    putIndex(row);
+	}
+	states[row] = state;
+	results[row] = (byte) result;
+	touched.set(row);
+    }
+
+    /**
+     * Return the number of paths in the journal.
+     *
+     * @return the number of paths
+     */
+    public synchronized int size() {
+	return count;
+    }
+
+    /**
+     * Calculate the state in which a path is being checked.
+     *
+     * @param cfd the entry in the contents file
+     * @param st the attributes of the path, which must have an identity
+     * @param summed whether the checksum is being compared
+     *
+     * @return a hash of the state
+     */
+    public static long state(ContentsFileDetail cfd, PathStat st,
+			boolean summed) {
+	long h = FNV_OFFSET;
+	h = mix(h, st.device());
+	h = mix(h, st.inode());
+	h = mix(h, st.size());
+	h = mix(h, st.changeTime());
+	h = mix(h, cfd.getType());
+	h = mix(h, hash(cfd.getMode()));
+	h = mix(h, hash(cfd.getOwner()));
+	h = mix(h, hash(cfd.getGroup()));
+	h = mix(h, cfd.getRawSize());
+	h = mix(h, cfd.getChecksum());
+	h = mix(h, cfd.getModTime());
+	h = mix(h, hash(cfd.getTarget()));
+	h = mix(h, summed ? 1 : 0);
+	return h;
+    }
+
+    private static long mix(long h, long v) {
+	for (int i = 0; i < 64; i += 8) {
+	    h = (h ^ ((v >>> i) & 0xff))*FNV_PRIME;
+	}
+	return h;
+    }
+
+    /*
+     * A 64-bit FNV-1a hash of the characters of the string.
+     */
+    private static long hash(String s) {
+	if (s == null) {
+	    return 0;
+	}
+	long h = FNV_OFFSET;
+	for (int i = 0; i < s.length(); i++) {
+	    h = (h ^ s.charAt(i))*FNV_PRIME;
+	}
+	return h;
+    }
+
+    private int find(long h) {
+	int mask = index.length - 1;
+	int slot = slot(h, mask);
+	while (index[slot] != -1) {
+	    if (paths[index[slot]] == h) {
+		return index[slot];
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	return -1;
+    }
+
+    private void putIndex(int row) {
+	int mask = index.length - 1;
+	int slot = slot(paths[row], mask);
+	while (index[slot] != -1) {
+	    slot = (slot + 1) & mask;
+	}
+	index[slot] = row;
+    }
+
+    private static int slot(long h, int mask) {
+	return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+	int nsize = paths.length*2;
+	paths = Arrays.copyOf(paths, nsize);
+	states = Arrays.copyOf(states, nsize);
+	results = Arrays.copyOf(results, nsize);
+	// keep the index no more than half full
+	index = new int[Integer.highestOneBit(nsize)*4];
+	Arrays.fill(index, -1);
+	for (int row = 0; row < count; row++) {
+	    putIndex(row);
+	}
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Write the results of PkgCheck, either as the usual text or in a form
+ * that other tools can read without having to parse the messages.
+ *
+ * Everything goes through a single large buffered writer on standard
+ * output, rather than a print per line. In text format, failures to
+ * check a path still go to standard error, so output is flushed before
+ * each of them to keep the two streams in step.
+ *
+ * In JSON Lines format each finding is written as an object on a line
+ * of its own, for example
+ * <pre>
+ * {"type":"result","level":"error","kind":"size","package":"SUNWcsu",
+ *  "path":"/usr/bin/ls","expected":"33376","actual":"33384"}
+ * </pre>
+ * and a final summary object gives the counts and elapsed time. In
+ * tab-separated format the same fields are written in a fixed order,
+ * with empty fields where a value doesn't apply, and the summary is a
+ * line of name=value pairs.
+ */
+public class CheckOutput {
+
+    /**
+     * The format used by PkgCheck since the beginning.
+     */
+    public static final int TEXT = 0;
+
+    /**
+     * JSON Lines, one object per line.
+     */
+    public static final int JSON = 1;
+
+    /**
+     * Tab-separated values.
+     */
+    public static final int TSV = 2;
+
+    /**
+     * Something that was confirmed to be correct.
+     */
+    public static final int OK = 0;
+
+    /**
+     * Information, such as which package is being checked.
+     */
+    public static final int INFO = 1;
+
+    /**
+     * A difference that's allowed, for example in an editable file.
+     */
+    public static final int WARNING = 2;
+
+    /**
+     * Drift between the contents file and the path on disk.
+     */
+    public static final int ERROR = 3;
+
+    /**
+     * Something that couldn't be checked at all.
+     */
+    public static final int FAILED = 4;
+
+    private static final String[] LEVELS = { "ok", "info", "warning",
+					"error", "failed" };
+
+    private static final int BUFSIZE = 1024*1024;
+
+    private final int format;
+    private final Writer w;
+    private final long start = System.nanoTime();
+    private long[] counts = new long[LEVELS.length];
+
+    /**
+     * Create a CheckOutput writing to standard output.
+     *
+     * @param format one of TEXT, JSON, or TSV
+     */
+    public CheckOutput(int format) {
+	this.format = format;
+	w = new BufferedWriter(new OutputStreamWriter(System.out), BUFSIZE);
+    }
+
+    /**
+     * Parse the name of an output format.
+     *
+     * @param s the name of the format, text, jsonl, or tsv
+     *
+     * @return the format, or -1 if it isn't recognised
+     */
+    public static int parseFormat(String s) {
+	if ("text".equals(s)) {
+	    return TEXT;
+	} else if ("jsonl".equals(s) || "json".equals(s)) {
+	    return JSON;
+	} else if ("tsv".equals(s)) {
+	    return TSV;
+	}
+	return -1;
+    }
+
+    /**
+     * Return whether findings are written as the usual text messages.
+     *
+     * @return true if the format is TEXT
+     */
+    public boolean isText() {
+	return format == TEXT;
+    }
+
+    /**
+     * Write a finding.
+     *
+     * @param f the finding to write
+     * @param pkg the package, or packages, the finding applies to, which
+     * may be null
+     *
+     * @throws IOException if the output couldn't be written
+     */
+    public void write(Finding f, String pkg) throws IOException {
+	counts[f.level]++;
+	if (format == TEXT) {
+	    if (f.level == FAILED) {
+		w.flush();
+		System.err.print(f.text);
+		System.err.print('\n');
+	    } else {
+		w.write(f.text);
+		w.write('\n');
+	    }
+	} else if (format == JSON) {
+	    w.write("{\"type\":\"result\",\"level\":\"");
+	    w.write(LEVELS[f.level]);
+	    w.write("\",\"kind\":\"");
+	    w.write(f.kind);
+	    w.write('"');
+	    jsonField("package", pkg);
+	    jsonField("path", f.path);
+	    jsonField("expected", f.expected);
+	    jsonField("actual", f.actual);
+	    w.write("}\n");
+	} else {
+	    w.write("result\t");
+	    w.write(LEVELS[f.level]);
+	    w.write('\t');
+	    w.write(f.kind);
+	    tsvField(pkg);
+	    tsvField(f.path);
+	    tsvField(f.expected);
+	    tsvField(f.actual);
+	    w.write('\n');
+	}
+    }
+
+    /**
+     * Write the estimated drift rate, when only a sample was checked.
+     *
+     * @param e the estimate
+     *
+     * @throws IOException if the output couldn't be written
+     */
+    public void estimate(CheckSampler.Estimate e) throws IOException {
+	if (format == JSON) {
+	    w.write("{\"type\":\"estimate\",\"population\":"
+		    + e.getPopulation() + ",\"sampled\":" + e.getSampled()
+		    + ",\"drifted\":" + e.getDrifted()
+		    + ",\"rate\":" + e.getRate() + ",\"low\":" + e.getLow()
+		    + ",\"high\":" + e.getHigh() + "}\n");
+	} else if (format == TSV) {
+	    w.write("estimate\tpopulation=" + e.getPopulation()
+		    + "\tsampled=" + e.getSampled()
+		    + "\tdrifted=" + e.getDrifted() + "\trate=" + e.getRate()
+		    + "\tlow=" + e.getLow() + "\thigh=" + e.getHigh() + "\n");
+	} else {
+	    w.write("Checked a sample of " + e.getSampled() + " of "
+		    + e.getPopulation() + " entries, " + e.getDrifted()
+		    + " with drift\n");
+	    w.write(String.format("Estimated drift rate %.2f%% "
+			+ "(95%% confidence interval %.2f%% to %.2f%%)\n",
+			100.0*e.getRate(), 100.0*e.getLow(),
+			100.0*e.getHigh()));
+	}
+    }
+
+    /**
+     * Finish the output, writing the summary if the format has one.
+     *
+     * @param entries the number of entries checked
+     * @param drift the number of entries where drift was found
+     *
+     * @throws IOException if the output couldn't be written
+     */
+    public void close(long entries, long drift) throws IOException {
+	long elapsed = (System.nanoTime() - start)/1000000;
+	if (format == JSON) {
+	    w.write("{\"type\":\"summary\",\"entries\":" + entries
+		    + ",\"drift\":" + drift);
+	    for (int i = 0; i < LEVELS.length; i++) {
+		w.write(",\"" + LEVELS[i] + "\":" + counts[i]);
+	    }
+	    w.write(",\"elapsed_ms\":" + elapsed + "}\n");
+	} else if (format == TSV) {
+	    w.write("summary\tentries=" + entries + "\tdrift=" + drift);
+	    for (int i = 0; i < LEVELS.length; i++) {
+		w.write("\t" + LEVELS[i] + "=" + counts[i]);
+	    }
+	    w.write("\telapsed_ms=" + elapsed + "\n");
+	}
+	w.flush();
+    }
+
+    private void jsonField(String name, String value) throws IOException {
+	if (value == null) {
+	    return;
+	}
+	w.write(",\"");
+	w.write(name);
+	w.write("\":\"");
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    if (c == '"' || c == '\\') {
+		w.write('\\');
+		w.write(c);
+	    } else if (c < 0x20) {
+		w.write(String.format("\\u%04x", (int) c));
+	    } else {
+		w.write(c);
+	    }
+	}
+	w.write('"');
+    }
+
+    /*
+     * Paths may contain anything, so tabs, newlines, and backslashes are
+     * escaped.
+     */
+    private void tsvField(String value) throws IOException {
+	w.write('\t');
+	if (value == null) {
+	    return;
+	}
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    if (c == '\t') {
+		w.write("\\t");
+	    } else if (c == '\n') {
+		w.write("\\n");
+	    } else if (c == '\r') {
+		w.write("\\r");
+	    } else if (c == '\\') {
+		w.write("\\\\");
+	    } else {
+		w.write(c);
+	    }
+	}
+    }
+
+    /**
+     * One thing found while checking, with both the message for the
+     * text format and the fields for the others.
+     */
+    public static class Finding {
+	final int level;
+	final String kind;
+	final String path;
+	final String expected;
+	final String actual;
+	final String text;
+
+	/**
+	 * Create a Finding.
+	 *
+	 * @param level one of OK, INFO, WARNING, ERROR, or FAILED
+	 * @param kind what was being checked, such as size or owner
+	 * @param path the path, if any
+	 * @param expected the expected value, if any
+	 * @param actual the value found, if any
+	 * @param text the message for the text format
+	 */
+	public Finding(int level, String kind, String path, String expected,
+		String actual, String text) {
+	    this.level = level;
+	    this.kind = kind;
+	    this.path = path;
+	    this.expected = expected;
+	    this.actual = actual;
+	    this.text = text;
+	}
+
+	/**
+	 * Return the level of this finding.
+	 *
+	 * @return one of OK, INFO, WARNING, ERROR, or FAILED
+	 */
+	public int getLevel() {
+	    return level;
+	}
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plan the order in which PkgCheck visits the filesystem.
+ *
+ * Entries are grouped by their parent directory, and the directories
+ * visited in sorted order, so that the paths in a directory are looked
+ * at together and the tree is walked roughly depth first, rather than
+ * jumping from place to place as the packages dictate. Each directory
+ * is listed once, which tells us which of its entries are missing
+ * without having to look them up one by one. Over NFS, where clients
+ * read directories with READDIRPLUS, the listing can also bring in the
+ * attributes of the entries in a few calls rather than one each.
+ *
+ * The plan needs all the entries up front, so PkgCheck only uses it
+ * with -D.
+ */
+public class CheckPlanner <T> {
+
+    // the entries in each directory
+    private Map <String, Group <T>> groups
+	= new HashMap <String, Group <T>> ();
+    // the group the last entry was added to
+    private Group <T> last;
+
+    /**
+     * Add an entry to be checked. Entries are best added in sorted order,
+     * as they are for each package, so that most of them are in the same
+     * directory as the one before and needn't be sorted again.
+     *
+     * @param cfd the entry to be checked
+     * @param item what to return for this entry from byDirectory()
+     */
+    public void add(ContentsFileDetail cfd, T item) {
+	String name = cfd.getName();
+	if (last == null || !inDirectory(name, last.dir)) {
+	    String dir = parent(name);
+	    last = groups.get(dir);
+	    if (last == null) {
+		last = new Group <T> (dir);
+		groups.put(dir, last);
+	    }
+	}
+	last.add(cfd, name, item);
+    }
+
+    /**
+     * Return the items added, grouped by the directory their entry is in.
+     * Entries whose path can't simply be split into a directory and a
+     * name, such as the root directory itself, are put in a group with a
+     * null key. The same entry may have been added more than once, in
+     * which case its items are next to each other.
+     *
+     * @return a Map of directory name to the items for the entries in
+     * that directory, sorted by name, iterating over the directories in
+     * order
+     */
+    public Map <String, List <T>> byDirectory() {
+	/*
+	 * Sorting everything at once is slow, as the entries are scattered
+	 * in memory. As they're grouped as they're added, we only need
+	 * to sort the directory names, and then any directory whose entries
+	 * weren't added in order.
+	 */
+	List <String> dirs = new ArrayList <String> (groups.keySet());
+	Collections.sort(dirs, new Comparator <String> () {
+	    public int compare(String s1, String s2) {
+		if (s1 == null) {
+		    return (s2 == null) ? 0 : -1;
+		}
+		return (s2 == null) ? 1 : s1.compareTo(s2);
+	    }
+	});
+	Map <String, List <T>> plan = new LinkedHashMap <String, List <T>> ();
+	for (String d : dirs) {
+	    Group <T> g = groups.get(d);
+	    plan.put(d, g.sorted ? g.items : sortByName(g));
+	}
+	return plan;
+    }
+
+    /*
+     * The names may have to be decoded, so only do that once for each
+     * entry.
+     */
+    private List <T> sortByName(Group <T> g) {
+	List <Step <T>> steps = new ArrayList <Step <T>> (g.cfds.size());
+	for (int i = 0; i < g.cfds.size(); i++) {
+	    steps.add(new Step <T> (g.cfds.get(i), g.items.get(i)));
+	}
+	// stable, so the same entry's items stay in the order added
+	Collections.sort(steps);
+	List <T> l = new ArrayList <T> (steps.size());
+	for (Step <T> step : steps) {
+	    l.add(step.item);
+	}
+	return l;
+    }
+
+    /**
+     * Return the directory containing a path.
+     *
+     * @param name the path name
+     *
+     * @return the parent directory, or null if the path isn't a plain
+     * absolute path with a parent
+     */
+    public static String parent(String name) {
+	int i = name.lastIndexOf('/');
+	if (i < 0 || !name.startsWith("/") || !plainName(name, i + 1)) {
+	    return null;
+	}
+	return (i == 0) ? "/" : name.substring(0, i);
+    }
+
+    /*
+     * Whether name is directly in the (non-null) directory dir, without
+     * having to cut it up.
+     */
+    private static boolean inDirectory(String name, String dir) {
+	if (dir == null || !name.startsWith(dir)) {
+	    return false;
+	}
+	int i = "/".equals(dir) ? 0 : dir.length();
+	return name.length() > i && name.charAt(i) == '/'
+	    && name.indexOf('/', i + 1) < 0 && plainName(name, i + 1);
+    }
+
+    /*
+     * The last component of a path, starting at start, mustn't be empty,
+     * "." or "..".
+     */
+    private static boolean plainName(String name, int start) {
+	int len = name.length() - start;
+	if (len == 0) {
+	    return false;
+	}
+	if (len <= 2 && name.charAt(start) == '.') {
+	    return len == 2 && name.charAt(start + 1) != '.';
+	}
+	return true;
+    }
+
+    /**
+     * Return the last component of a path.
+     *
+     * @param name the path name
+     *
+     * @return the name of the path within its directory
+     */
+    public static String baseName(String name) {
+	return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    /*
+     * The entries in a directory, and whether they were added in order.
+     */
+    static class Group <T> {
+	final String dir;
+	final List <ContentsFileDetail> cfds
+	    = new ArrayList <ContentsFileDetail> ();
+	final List <T> items = new ArrayList <T> ();
+	boolean sorted = true;
+	String lastName;
+
+	Group(String dir) {
+	    this.dir = dir;
+	}
+
+	void add(ContentsFileDetail cfd, String name, T item) {
+	    if (lastName != null && name.compareTo(lastName) < 0) {
+		sorted = false;
+	    }
+	    cfds.add(cfd);
+	    items.add(item);
+	    lastName = name;
+	}
+    }
+
+    /*
+     * An item along with its entry's name.
+     */
+    static class Step <T> implements Comparable <Step <T>> {
+	final T item;
+	final String name;
+
+	Step(ContentsFileDetail cfd, T item) {
+	    this.item = item;
+	    name = cfd.getName();
+	}
+
+	public int compareTo(Step <T> other) {
+	    return name.compareTo(other.name);
+	}
+    }
+
+    /**
+     * List the names in a directory.
+     *
+     * @param dir the directory to list
+     *
+     * @return the names in the directory, or null if it can't be listed
+     */
+    public static Set <String> list(String dir) {
+	Set <String> names = new HashSet <String> ();
+	try {
+	    DirectoryStream <Path> ds
+		= Files.newDirectoryStream(Paths.get(dir));
+	    try {
+		for (Path p : ds) {
+		    names.add(p.getFileName().toString());
+		}
+	    } finally {
+		ds.close();
+	    }
+	} catch (IOException ioe) {
+	    return null;
+	} catch (DirectoryIteratorException die) {
+	    return null;
+	}
+	return names;
+    }
+}
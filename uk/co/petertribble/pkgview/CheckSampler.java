@@ -0,0 +1,302 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Choose a random sample of the entries to be checked by PkgCheck, and
+ * estimate from the results how many of all the entries have drifted.
+ *
+ * The sample is either a fixed number of entries or a percentage of
+ * them. It may be stratified, for example by package, in which case
+ * the sample is shared out between the strata in proportion to their
+ * size, so that every large package is represented. Within each stratum
+ * entries are chosen with equal probability in a single pass (Knuth's
+ * algorithm S), so the chosen entries stay in their original order.
+ *
+ * The drift rate is estimated as the weighted mean of the rate in each
+ * stratum, and its variance allows for the sample being drawn without
+ * replacement from a finite population. The 95% confidence interval is
+ * a Wilson score interval, using the effective sample size implied by
+ * that variance, which unlike the usual normal interval still gives a
+ * useful upper bound when no drift is found at all.
+ */
+public class CheckSampler {
+
+    // the 97.5th percentile of the normal distribution
+    private static final double Z = 1.959964;
+
+    private final long count;
+    private final double percent;
+
+    // the stratum of each unit
+    private int[] strata = new int[1024];
+    private int nunits;
+    private Map <String, Integer> strataIds = new HashMap <String, Integer> ();
+    // the number of units, chosen units, and drifted units, by stratum
+    private long[] sizes = new long[16];
+    private long[] chosen = new long[16];
+    private long[] drifted = new long[16];
+
+    private CheckSampler(long count, double percent) {
+	this.count = count;
+	this.percent = percent;
+    }
+
+    /**
+     * Parse the size of a sample, either a number of entries, or a
+     * percentage followed by %.
+     *
+     * @param s the size of the sample
+     *
+     * @return a new CheckSampler
+     *
+     * @throws NumberFormatException if the size isn't valid
+     */
+    public static CheckSampler parse(String s) {
+	if (s.endsWith("%")) {
+	    double d = Double.parseDouble(s.substring(0, s.length() - 1));
+	    if (!(d > 0.0 && d <= 100.0)) {
+		throw new NumberFormatException("Invalid percentage " + s);
+	    }
+	    return new CheckSampler(0, d);
+	}
+	long l = Long.parseLong(s);
+	if (l <= 0) {
+	    throw new NumberFormatException("Invalid sample size " + s);
+	}
+	return new CheckSampler(l, 0.0);
+    }
+
+    /**
+     * Add a unit to choose from.
+     *
+     * @param stratum the stratum the unit belongs to, null if the sample
+     * isn't stratified
+     *
+     * @return the index of the unit
+     */
+    public int add(String stratum) {
+	Integer id = strataIds.get(stratum);
+	if (id == null) {
+	    id = strataIds.size();
+	    strataIds.put(stratum, id);
+	    if (id == sizes.length) {
+		sizes = Arrays.copyOf(sizes, id*2);
+		chosen = Arrays.copyOf(chosen, id*2);
+		drifted = Arrays.copyOf(drifted, id*2);
+	    }
+	}
+	if (nunits == strata.length) {
+	    strata = Arrays.copyOf(strata, nunits*2);
+	}
+	strata[nunits] = id;
+	sizes[id]++;
+	return nunits++;
+    }
+
+    /**
+     * Choose the sample.
+     *
+     * @param random the source of randomness
+     *
+     * @return whether each unit, in the order added, is in the sample
+     */
+    public boolean[] choose(Random random) {
+	int nstrata = strataIds.size();
+	long[] wanted = allocate(nstrata);
+	long[] left = Arrays.copyOf(sizes, nstrata);
+	boolean[] sample = new boolean[nunits];
+	for (int i = 0; i < nunits; i++) {
+	    int h = strata[i];
+	    if (random.nextDouble()*left[h] < wanted[h]) {
+		sample[i] = true;
+		wanted[h]--;
+		chosen[h]++;
+	    }
+	    left[h]--;
+	}
+	return sample;
+    }
+
+    /*
+     * Share the sample out between the strata in proportion to their
+     * size, giving any left over to those with the largest remainders.
+     */
+    private long[] allocate(int nstrata) {
+	long total = (count > 0) ? Math.min(count, nunits)
+	    : (long) Math.ceil(nunits*percent/100.0);
+	long[] wanted = new long[nstrata];
+	double[] rem = new double[nstrata];
+	long given = 0;
+	for (int h = 0; h < nstrata; h++) {
+	    double share = (double) total*sizes[h]/nunits;
+	    wanted[h] = (long) share;
+	    rem[h] = share - wanted[h];
+	    given += wanted[h];
+	}
+	while (given < total) {
+	    int best = -1;
+	    for (int h = 0; h < nstrata; h++) {
+		if (wanted[h] < sizes[h] && (best < 0 || rem[h] > rem[best])) {
+		    best = h;
+		}
+	    }
+	    wanted[best]++;
+	    rem[best] = -1.0;
+	    given++;
+	}
+	return wanted;
+    }
+
+    /**
+     * Record that a unit in the sample was found to have drifted.
+     *
+     * @param unit the index of the unit, as returned by add()
+     */
+    public void drifted(int unit) {
+	drifted[strata[unit]]++;
+    }
+
+    /**
+     * Estimate the drift rate across all the units.
+     *
+     * @return the estimate
+     */
+    public Estimate estimate() {
+	int nstrata = strataIds.size();
+	long population = 0;
+	long sampled = 0;
+	long found = 0;
+	for (int h = 0; h < nstrata; h++) {
+	    if (chosen[h] > 0) {
+		population += sizes[h];
+	    }
+	    sampled += chosen[h];
+	    found += drifted[h];
+	}
+	double rate = 0.0;
+	double var = 0.0;
+	for (int h = 0; h < nstrata; h++) {
+	    if (chosen[h] == 0) {
+		continue;
+	    }
+	    double w = (double) sizes[h]/population;
+	    double p = (double) drifted[h]/chosen[h];
+	    rate += w*p;
+	    if (chosen[h] > 1) {
+		double fpc = 1.0 - (double) chosen[h]/sizes[h];
+		var += w*w*fpc*p*(1.0 - p)/(chosen[h] - 1);
+	    }
+	}
+	Estimate e = new Estimate();
+	e.population = nunits;
+	e.sampled = sampled;
+	e.drifted = found;
+	e.rate = rate;
+	if (sampled == 0 || sampled == nunits) {
+	    // nothing to go on, or everything was checked
+	    e.low = (sampled == 0) ? 0.0 : rate;
+	    e.high = (sampled == 0) ? 1.0 : rate;
+	    return e;
+	}
+	double n = (var > 0.0) ? rate*(1.0 - rate)/var : sampled;
+	double z2 = Z*Z;
+	double denom = 1.0 + z2/n;
+	double centre = (rate + z2/(2.0*n))/denom;
+	double half = Z*Math.sqrt(rate*(1.0 - rate)/n + z2/(4.0*n*n))/denom;
+	e.low = (found == 0) ? 0.0 : Math.max(0.0, centre - half);
+	e.high = (found == sampled) ? 1.0 : Math.min(1.0, centre + half);
+	return e;
+    }
+
+    /**
+     * An estimate of the drift rate.
+     */
+    public static class Estimate {
+	long population;
+	long sampled;
+	long drifted;
+	double rate;
+	double low;
+	double high;
+
+	/**
+	 * Return the number of entries the sample was drawn from.
+	 *
+	 * @return the size of the population
+	 */
+	public long getPopulation() {
+	    return population;
+	}
+
+	/**
+	 * Return the number of entries checked.
+	 *
+	 * @return the size of the sample
+	 */
+	public long getSampled() {
+	    return sampled;
+	}
+
+	/**
+	 * Return the number of entries in the sample with drift.
+	 *
+	 * @return the number of drifted entries found
+	 */
+	public long getDrifted() {
+	    return drifted;
+	}
+
+	/**
+	 * Return the estimated drift rate.
+	 *
+	 * @return the estimated fraction of entries with drift
+	 */
+	public double getRate() {
+	    return rate;
+	}
+
+	/**
+	 * Return the lower bound of the 95% confidence interval.
+	 *
+	 * @return the lower bound on the fraction of entries with drift
+	 */
+	public double getLow() {
+	    return low;
+	}
+
+	/**
+	 * Return the upper bound of the 95% confidence interval.
+	 *
+	 * @return the upper bound on the fraction of entries with drift
+	 */
+	public double getHigh() {
+	    return high;
+	}
+    }
+}
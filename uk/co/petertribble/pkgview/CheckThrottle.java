@@ -0,0 +1,123 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+/**
+ * Pace the filesystem operations made by PkgCheck, so that a check can
+ * be left running on a busy system without getting in the way.
+ *
+ * The number of operations a second can be capped, using a
+ * ThroughputLimiter shared by all the worker threads. The rate at which
+ * files are read for checksums is limited separately.
+ *
+ * If a latency threshold is given, the time each operation takes is
+ * tracked as a moving average. While that stays above the threshold,
+ * the filesystem is taken to be busy and each operation is preceded by
+ * a pause, a multiple of the average latency, which doubles every tenth
+ * of a second until the latency falls again, up to 64 times. Once the
+ * latency is back under the threshold the pause is halved each tenth
+ * of a second until it goes away.
+ */
+public class CheckThrottle {
+
+    private static final long ADJUST_NANOS = 100000000L;
+    private static final double MAX_BACKOFF = 64.0;
+
+    private final ThroughputLimiter ops;
+    private final long threshold;
+
+    // moving average of the latency, in nanoseconds
+    private double average;
+    // how many times the average latency to pause after each operation
+    private double backoff;
+    private long nextAdjust = System.nanoTime() + ADJUST_NANOS;
+
+    /**
+     * Create a CheckThrottle.
+     *
+     * @param opsPerSecond the maximum number of operations a second, or
+     * zero for no limit
+     * @param thresholdMillis the latency in milliseconds above which to
+     * back off, or zero to never back off
+     */
+    public CheckThrottle(long opsPerSecond, long thresholdMillis) {
+	ops = (opsPerSecond > 0) ? new ThroughputLimiter(opsPerSecond) : null;
+	threshold = thresholdMillis*1000000L;
+    }
+
+    /**
+     * Wait until an operation may start.
+     *
+     * @return the time the operation started, to be passed to finish()
+     */
+    public long start() {
+	if (ops != null) {
+	    ops.acquire(1);
+	}
+	long pause;
+	synchronized (this) {
+	    pause = (long) (average*backoff);
+	}
+	if (pause > 0) {
+	    try {
+		Thread.sleep(pause/1000000, (int) (pause%1000000));
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	return System.nanoTime();
+    }
+
+    /**
+     * Note that an operation has finished.
+     *
+     * @param started the time the operation started, as returned by
+     * start()
+     */
+    public void finish(long started) {
+	if (threshold == 0) {
+	    return;
+	}
+	long now = System.nanoTime();
+	synchronized (this) {
+	    average += (now - started - average)/4.0;
+	    if (now >= nextAdjust) {
+		if (average > threshold) {
+		    backoff = Math.min(Math.max(backoff*2.0, 1.0),
+					MAX_BACKOFF);
+		} else {
+		    /*
+		     * When backed off there may be few operations, so allow
+		     * for all the periods that have gone by since the last.
+		     */
+		    long periods = 1 + (now - nextAdjust)/ADJUST_NANOS;
+		    backoff = Math.scalb(backoff, (int) -Math.min(periods, 16));
+		    if (backoff < 0.25) {
+			backoff = 0.0;
+		    }
+		}
+		nextAdjust = now + ADJUST_NANOS;
+	    }
+	}
+    }
+}
@@ -129,6 +129,13 @@ public class ClusterPanel extends JPanel {
 	pip.showDetailedView();
     }
 
+    /**
+     * Redisplay the current selection, as the package contents have changed.
+     */
+    public void redraw() {
+	pip.redraw();
+    }
+
     public void reset() {
 	currentPackage = null;
 	tree.clearSelection();
@@ -22,21 +22,33 @@
 
 package uk.co.petertribble.pkgview;
 
+import java.io.IOException;
+import java.util.Set;
+
 /**
  * Print out the sizes of all the package clusters.
  */
 public class ClusterSizes {
 
     /**
-     * Prints out the installed sizes of all package clusters.
+     * Prints out the installed sizes of all package clusters. The contents
+     * file is read in a single pass, keeping just the totals.
      *
      * @param args Command line arguments, unused
+     *
+     * @throws IOException if the contents file can't be read
      */
-    public static void main(String[] args) {
-	for (PackageCluster pc :
-		new ClusterToc().getMetaCluster("SUNWCXall").getClusters()) {
-	    ContentsPackage cc = new ContentsPackage(pc);
-	    System.out.println(cc.spaceUsed() + " | " + cc.numEntries()
+    public static void main(String[] args) throws IOException {
+	Set <PackageCluster> clusters =
+		new ClusterToc().getMetaCluster("SUNWCXall").getClusters();
+	ContentsTotals totals = new ContentsTotals();
+	for (PackageCluster pc : clusters) {
+	    totals.addGroup(pc.getClusterName(), pc.getPackages());
+	}
+	ContentsParser.scan(totals);
+	for (PackageCluster pc : clusters) {
+	    System.out.println(totals.spaceUsed(pc.getClusterName()) + " | "
+			+ totals.numEntries(pc.getClusterName())
 			+ " | " + pc.getClusterName()
 			+ " | " + pc.getDescription());
 	}
@@ -0,0 +1,197 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Compare the time taken, and memory allocated, to parse the contents
+ * file using the original StringTokenizer parser and the byte level
+ * ContentsTokenizer.
+ */
+public class ContentsBenchmark {
+
+    private static final String CONTENTS_FILE = "/var/sadm/install/contents";
+
+    private String contents;
+    // so the JIT can't throw the work away
+    private long sink;
+
+    /**
+     * Create a ContentsBenchmark for the given contents file.
+     *
+     * @param contents the name of the contents file to parse
+     */
+    public ContentsBenchmark(String contents) {
+	this.contents = contents;
+    }
+
+    /*
+     * Read lines and parse each one with StringTokenizer, as
+     * ContentsFileDetail(String) does.
+     */
+    private int stringTokenizer() throws IOException {
+	int n = 0;
+	BufferedReader in = new BufferedReader(new FileReader(contents));
+	try {
+	    String s = null;
+	    while ((s = in.readLine()) != null) {
+		ContentsFileDetail cfd = new ContentsFileDetail(s);
+		sink += cfd.getRawSize();
+		n++;
+	    }
+	} finally {
+	    in.close();
+	}
+	return n;
+    }
+
+    /*
+     * Read raw bytes and create a ContentsFileDetail from the tokens.
+     */
+    private int byteTokenizer() throws IOException {
+	int n = 0;
+	InputStream in = new FileInputStream(contents);
+	try {
+	    ContentsTokenizer tok = new ContentsTokenizer(in);
+	    while (tok.next()) {
+		ContentsFileDetail cfd = new ContentsFileDetail(tok);
+		sink += cfd.getRawSize();
+		n++;
+	    }
+	} finally {
+	    in.close();
+	}
+	return n;
+    }
+
+    /*
+     * Just split each line, looking at the numeric fields only, which
+     * shows the cost of the tokenizing itself.
+     */
+    private int tokenizeOnly() throws IOException {
+	int n = 0;
+	InputStream in = new FileInputStream(contents);
+	try {
+	    ContentsTokenizer tok = new ContentsTokenizer(in);
+	    while (tok.next()) {
+		sink += tok.getSize() + tok.getModTime() + tok.getMode();
+		n++;
+	    }
+	} finally {
+	    in.close();
+	}
+	return n;
+    }
+
+    /*
+     * Fill a ContentsTable, as the compact parse does.
+     */
+    private int compactTable() throws IOException {
+	ContentsTable table = new ContentsTable();
+	InputStream in = new FileInputStream(contents);
+	try {
+	    ContentsTokenizer tok = new ContentsTokenizer(in);
+	    while (tok.next()) {
+		table.add(tok);
+	    }
+	} finally {
+	    in.close();
+	}
+	return table.size();
+    }
+
+    private int run(int which) throws IOException {
+	switch (which) {
+	    case 0:
+		return stringTokenizer();
+	    case 1:
+		return byteTokenizer();
+	    case 2:
+		return tokenizeOnly();
+	    default:
+		return compactTable();
+	}
+    }
+
+    /*
+     * Bytes allocated by this thread so far, or -1 if the JVM can't
+     * tell us.
+     */
+    private static long allocated() {
+	ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+	if (tmx instanceof com.sun.management.ThreadMXBean) {
+	    return ((com.sun.management.ThreadMXBean) tmx)
+		.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	return -1;
+    }
+
+    /**
+     * Run each parser a number of times, and print the best time and
+     * the memory allocated per line.
+     *
+     * @param iterations how many times to run each parser
+     *
+     * @throws IOException if the contents file can't be read
+     */
+    public void runAll(int iterations) throws IOException {
+	String[] names = { "StringTokenizer", "ContentsTokenizer",
+			"tokenize only", "ContentsTable" };
+	for (int which = 0; which < names.length; which++) {
+	    long best = Long.MAX_VALUE;
+	    long alloc = 0;
+	    int lines = 0;
+	    for (int i = 0; i < iterations; i++) {
+		long a0 = allocated();
+		long t0 = System.nanoTime();
+		lines = run(which);
+		long t1 = System.nanoTime();
+		alloc = allocated() - a0;
+		best = Math.min(best, t1 - t0);
+	    }
+	    System.out.println(names[which] + ": " + lines + " lines, best "
+			+ best/1000000 + "ms, "
+			+ (lines == 0 ? 0 : best/lines) + "ns/line"
+			+ (alloc < 0 || lines == 0 ? ""
+			    : ", " + alloc/lines + " bytes/line allocated"));
+	}
+    }
+
+    /**
+     * Benchmark parsing of the contents file.
+     *
+     * @param args Command line arguments, optionally the name of the
+     * contents file and the number of iterations
+     *
+     * @throws IOException if the contents file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+	String contents = (args.length > 0) ? args[0] : CONTENTS_FILE;
+	int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+	ContentsBenchmark cb = new ContentsBenchmark(contents);
+	cb.runAll(iterations);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Bloom filter over the path names in the contents file, so that most
+ * paths that don't belong to any package can be rejected without looking
+ * them up.
+ *
+ * The filter is sized at 10 bits per path with 7 hashes, all within a
+ * single cache line, giving about 1% false positives. Paths can be added
+ * but not removed, so once paths have been removed the false positive
+ * rate goes up until the filter is rebuilt.
+ *
+ * Counters record how many lookups were rejected by the filter (misses),
+ * how many got past it and were found (hits), and how many got past it
+ * but weren't found (false positives).
+ */
+public class ContentsBloomFilter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int NHASHES = 7;
+
+    // each path sets bits in just one 512 bit block, one cache line
+    private static final int BLOCK_WORDS = 8;
+
+    private final long[] bits;
+    private final int capacity;
+    private int count;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    /**
+     * Create an empty filter with room for the given number of paths.
+     *
+     * @param capacity the number of paths the filter is sized for
+     */
+    public ContentsBloomFilter(int capacity) {
+	this.capacity = Math.max(capacity, 64);
+	long nbits = this.capacity*(long) BITS_PER_ENTRY;
+	bits = new long[(int) ((nbits + 511)/512)*BLOCK_WORDS];
+    }
+
+    private ContentsBloomFilter(ByteBuffer buf) {
+	capacity = buf.getInt();
+	count = buf.getInt();
+	bits = new long[buf.getInt()];
+	buf.asLongBuffer().get(bits);
+	buf.position(buf.position() + 8*bits.length);
+    }
+
+    /**
+     * Read a filter previously saved by write().
+     *
+     * @param buf a ByteBuffer positioned at the start of the saved filter
+     *
+     * @return the ContentsBloomFilter
+     */
+    public static ContentsBloomFilter read(ByteBuffer buf) {
+	return new ContentsBloomFilter(buf);
+    }
+
+    /**
+     * Save this filter, so it can be recreated by read().
+     *
+     * @param dos the stream to write the filter to
+     *
+     * @throws IOException if the filter couldn't be written
+     */
+    public synchronized void write(DataOutputStream dos) throws IOException {
+	dos.writeInt(capacity);
+	dos.writeInt(count);
+	dos.writeInt(bits.length);
+	for (long l : bits) {
+	    dos.writeLong(l);
+	}
+    }
+
+    /**
+     * Add a path name to the filter.
+     *
+     * @param name the path name to add
+     */
+    public void add(String name) {
+	set(hash(name));
+    }
+
+    /*
+     * Add a path name given as UTF-8 bytes.
+     */
+    void add(byte[] b, int off, int len) {
+	set(hash(b, off, len));
+    }
+
+    private synchronized void set(long h) {
+	int block = block(h);
+	long g = mix(h);
+	for (int i = 0; i < NHASHES; i++) {
+	    int bit = (int) (g >>> (9*i)) & 511;
+	    bits[block + (bit >>> 6)] |= 1L << bit;
+	}
+	count++;
+    }
+
+    /**
+     * Return whether the given path might be in the contents file. If
+     * not, this is counted as a miss.
+     *
+     * @param name the path name to check
+     *
+     * @return false if the path definitely isn't in the contents file
+     */
+    public boolean mightContain(String name) {
+	long h = hash(name);
+	int block = block(h);
+	long g = mix(h);
+	for (int i = 0; i < NHASHES; i++) {
+	    int bit = (int) (g >>> (9*i)) & 511;
+	    if ((bits[block + (bit >>> 6)] & (1L << bit)) == 0) {
+		misses.incrementAndGet();
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /*
+     * The index of the first word of the 512 bit block for this hash.
+     */
+    private int block(long h) {
+	return (int) ((h >>> 1) % (bits.length/BLOCK_WORDS))*BLOCK_WORDS;
+    }
+
+    /**
+     * Record the outcome of looking up a path that got past the filter.
+     *
+     * @param found whether the path was in the contents file
+     */
+    public void confirm(boolean found) {
+	if (found) {
+	    hits.incrementAndGet();
+	} else {
+	    falsePositives.incrementAndGet();
+	}
+    }
+
+    /**
+     * Return whether more paths have been added than the filter was
+     * sized for, so that it should be rebuilt.
+     *
+     * @return true if the filter is over capacity
+     */
+    public synchronized boolean isFull() {
+	return count > capacity;
+    }
+
+    /**
+     * Return the number of lookups that got past the filter and were
+     * found.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+	return hits.get();
+    }
+
+    /**
+     * Return the number of lookups rejected by the filter.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+	return misses.get();
+    }
+
+    /**
+     * Return the number of lookups that got past the filter but
+     * weren't found.
+     *
+     * @return the number of false positives
+     */
+    public long getFalsePositives() {
+	return falsePositives.get();
+    }
+
+    @Override
+    public String toString() {
+	return "path filter: " + getHits() + " hits, " + getMisses()
+	    + " misses, " + getFalsePositives() + " false positives";
+    }
+
+    /*
+     * Based on String.hashCode(), which is cached by the String and is
+     * needed anyway if the path is then looked up in a HashMap. For the
+     * UTF-8 bytes of a name, the same value is calculated directly if
+     * the name is plain ASCII.
+     */
+    private static long hash(String s) {
+	return mix(s.hashCode());
+    }
+
+    private static long hash(byte[] b, int off, int len) {
+	int h = 0;
+	for (int i = off; i < off + len; i++) {
+	    if (b[i] < 0) {
+		return hash(new String(b, off, len, UTF8));
+	    }
+	    h = 31*h + b[i];
+	}
+	return mix(h);
+    }
+
+    private static long mix(long h) {
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+}
@@ -28,24 +28,30 @@ import java.util.StringTokenizer;
 
 /**
  * Parse a line of the SVR4 packaging contents file.
+ *
+ * A ContentsFileDetail may instead be a lightweight view of one row of
+ * a ContentsTable, in which case it holds no data of its own.
  */
 public class ContentsFileDetail {
 
     private String filename;
-    private String ftype;
+    private char ftype;
     // private String pclass;
     private String owner;
     private String group;
     private String mode;
-    // stored as String, let consumers do the conversion work
-    private String size;
-    // private String cksum;
-    private String modtime;
+    private long size = ContentsTable.ABSENT;
+    private long cksum = ContentsTable.ABSENT;
+    private long modtime = ContentsTable.ABSENT;
     private List <String> pkglist;
     // only valid for links
     private String target;
     // major + minor only valid for devices, ignore as not used
 
+    // if this is a view of a row in a table
+    private ContentsTable table;
+    private int row;
+
     /**
      * Create a set of details from a line of the contents file.
      *
@@ -56,6 +62,40 @@ public class ContentsFileDetail {
 	parseNewStyle(s);
     }
 
+    /**
+     * Create a set of details from the current line of a
+     * ContentsTokenizer.
+     *
+     * @param t a ContentsTokenizer positioned on a line of the contents file
+     */
+    public ContentsFileDetail(ContentsTokenizer t) {
+	filename = t.getName();
+	ftype = t.getType();
+	target = t.getTarget();
+	mode = t.getModeString();
+	owner = t.getOwner();
+	group = t.getGroup();
+	size = t.getSize();
+	cksum = t.getChecksum();
+	modtime = t.getModTime();
+	int n = t.numPackages();
+	pkglist = new ArrayList <String> (n);
+	for (int i = 0; i < n; i++) {
+	    pkglist.add(t.getPackage(i));
+	}
+    }
+
+    /**
+     * Create a view of a row of a ContentsTable.
+     *
+     * @param table the ContentsTable holding the data
+     * @param row the row of the table this entry represents
+     */
+    public ContentsFileDetail(ContentsTable table, int row) {
+	this.table = table;
+	this.row = row;
+    }
+
     /**
      * Parse the line. We pick the name and the type, then parse the
      * rest according to the type. From contents(4)
@@ -73,7 +113,7 @@ public class ContentsFileDetail {
     private void parseNewStyle(String s) {
 	StringTokenizer st = new StringTokenizer(s, " ");
 	filename = st.nextToken();
-	ftype = st.nextToken();
+	ftype = st.nextToken().charAt(0);
 	// skip pclass
 	st.nextToken();
 	// deal with links first
@@ -96,10 +136,9 @@ public class ContentsFileDetail {
 	owner = st.nextToken();
 	group = st.nextToken();
 	if (isRegular()) {
-	    size = st.nextToken();
-	    // skip cksum and modtime
-	    st.nextToken();
-	    modtime = st.nextToken();
+	    size = parseLong(st.nextToken());
+	    cksum = parseLong(st.nextToken());
+	    modtime = parseLong(st.nextToken());
 	}
 	// anything left is a package
 	while (st.hasMoreTokens()) {
@@ -107,13 +146,43 @@ public class ContentsFileDetail {
 	}
     }
 
+    private static long parseLong(String s) {
+	try {
+	    return Long.parseLong(s);
+	} catch (NumberFormatException nfe) {
+	    return ContentsTable.ABSENT;
+	}
+    }
+
+    /*
+     * Return just the path name from a line of the contents file, without
+     * parsing the rest of the line.
+     */
+    static String linePath(String s) {
+	int i = s.indexOf(' ');
+	if (i < 0) {
+	    return s;
+	}
+	String name = s.substring(0, i);
+	if (i + 1 < s.length()) {
+	    char t = s.charAt(i + 1);
+	    if (t == 'l' || t == 's') {
+		int j = name.indexOf('=');
+		if (j >= 0) {
+		    name = name.substring(0, j);
+		}
+	    }
+	}
+	return name;
+    }
+
     /**
      * Return the name of the file associated with this entry.
      *
      * @return the file name
      */
     public String getName() {
-	return filename;
+	return (table == null) ? filename : table.getName(row);
     }
 
     /**
@@ -122,7 +191,7 @@ public class ContentsFileDetail {
      * @return the link target
      */
     public String getTarget() {
-	return target;
+	return (table == null) ? target : table.getTarget(row);
     }
 
     /**
@@ -131,7 +200,7 @@ public class ContentsFileDetail {
      * @return  The file owner
      */
     public String getOwner() {
-	return owner;
+	return (table == null) ? owner : table.getOwner(row);
     }
 
     /**
@@ -140,7 +209,7 @@ public class ContentsFileDetail {
      * @return the file group owner
      */
     public String getGroup() {
-	return group;
+	return (table == null) ? group : table.getGroup(row);
     }
 
     /**
@@ -149,7 +218,7 @@ public class ContentsFileDetail {
      * @return the file permissions mode
      */
     public String getMode() {
-	return mode;
+	return (table == null) ? mode : table.getModeString(row);
     }
 
     /**
@@ -158,7 +227,32 @@ public class ContentsFileDetail {
      * @return the file size
      */
     public String getSize() {
-	return size;
+	long l = getRawSize();
+	return (l == ContentsTable.ABSENT) ? null : Long.toString(l);
+    }
+
+    /*
+     * The size as a number, or zero if there isn't a size.
+     */
+    long sizeValue() {
+	long l = getRawSize();
+	return (l == ContentsTable.ABSENT) ? 0 : l;
+    }
+
+    /*
+     * The size, or ContentsTable.ABSENT if there isn't a size.
+     */
+    long getRawSize() {
+	return (table == null) ? size : table.getSize(row);
+    }
+
+    /**
+     * Return the SVR4 checksum of a file, as calculated by sum(1).
+     *
+     * @return the checksum, or ContentsTable.ABSENT if there isn't one
+     */
+    public long getChecksum() {
+	return (table == null) ? cksum : table.getChecksum(row);
     }
 
     /**
@@ -167,7 +261,21 @@ public class ContentsFileDetail {
      * @return the time the file was last modified
      */
     public long lastModified() {
-	return Long.parseLong(modtime);
+	return getModTime();
+    }
+
+    /*
+     * The modification time, or ContentsTable.ABSENT if there isn't one.
+     */
+    long getModTime() {
+	return (table == null) ? modtime : table.getModTime(row);
+    }
+
+    /*
+     * The single character file type.
+     */
+    char getType() {
+	return (table == null) ? ftype : table.getType(row);
     }
 
     /**
@@ -176,7 +284,7 @@ public class ContentsFileDetail {
      * @return  A List of package names that own this entry.
      */
     public List <String> getPackageNames() {
-	return pkglist;
+	return (table == null) ? pkglist : table.getPackageNames(row);
     }
 
     /**
@@ -186,7 +294,7 @@ public class ContentsFileDetail {
      */
     public List <SolarisPackage> getPackages() {
 	List <SolarisPackage> lp = new ArrayList <SolarisPackage> ();
-	for (String s : pkglist) {
+	for (String s : getPackageNames()) {
 	    lp.add(new SolarisPackage(s));
 	}
 	return lp;
@@ -198,7 +306,8 @@ public class ContentsFileDetail {
      * or more than one.
      */
     public boolean isShared() {
-	return (pkglist.size() != 1);
+	return (table == null) ? (pkglist.size() != 1)
+	    : (table.numPackages(row) != 1);
     }
 
     /**
@@ -207,7 +316,8 @@ public class ContentsFileDetail {
      * to a package).
      */
     public boolean isDirectory() {
-	return ("d".equals(ftype) || "x".equals(ftype));
+	char t = getType();
+	return (t == 'd' || t == 'x');
     }
 
     /**
@@ -216,7 +326,8 @@ public class ContentsFileDetail {
      * checksum, and modification time
      */
     public boolean isRegular() {
-	return ("e".equals(ftype) || "f".equals(ftype) || "v".equals(ftype));
+	char t = getType();
+	return (t == 'e' || t == 'f' || t == 'v');
     }
 
     /**
@@ -225,7 +336,8 @@ public class ContentsFileDetail {
      * from the installed values.
      */
     public boolean isEditable() {
-	return ("e".equals(ftype) || "v".equals(ftype));
+	char t = getType();
+	return (t == 'e' || t == 'v');
     }
 
     /**
@@ -233,7 +345,7 @@ public class ContentsFileDetail {
      * This is denoted by it being of type l.
      */
     public boolean isHardLink() {
-	return "l".equals(ftype);
+	return getType() == 'l';
     }
 
     /**
@@ -241,7 +353,7 @@ public class ContentsFileDetail {
      * This is denoted by it being of type s.
      */
     public boolean isSymLink() {
-	return "s".equals(ftype);
+	return getType() == 's';
     }
 
     /**
@@ -250,7 +362,8 @@ public class ContentsFileDetail {
      * type s (symbolic link).
      */
     public boolean isLink() {
-	return ("l".equals(ftype) || "s".equals(ftype));
+	char t = getType();
+	return (t == 'l' || t == 's');
     }
 
     /**
@@ -259,7 +372,8 @@ public class ContentsFileDetail {
      * type c (character device).
      */
     public boolean isDevice() {
-	return ("b".equals(ftype) || "c".equals(ftype));
+	char t = getType();
+	return (t == 'b' || t == 'c');
     }
 
     /**
@@ -267,31 +381,61 @@ public class ContentsFileDetail {
      */
     public String getDescriptiveType() {
 	String t;
-	if ("b".equals(ftype)) {
-	    t = "Block special device.";
-	} else if ("c".equals(ftype)) {
-	    t = "Character special device.";
-	} else if ("d".equals(ftype)) {
-	    t = "Directory.";
-	} else if ("e".equals(ftype)) {
-	    t = "Editable file.";
-	} else if ("f".equals(ftype)) {
-	    t = "Regular file.";
-	} else if ("i".equals(ftype)) {
-	    t = "Information file.";
-	} else if ("l".equals(ftype)) {
-	    t = "Hard linked file.";
-	} else if ("p".equals(ftype)) {
-	    t = "Named pipe.";
-	} else if ("s".equals(ftype)) {
-	    t = "Symbolic link.";
-	} else if ("v".equals(ftype)) {
-	    t = "Volatile file.";
-	} else if ("x".equals(ftype)) {
-	    t = "Directory exclusive to this package.";
-	} else {
-	    t = "Unknown.";
+	switch (getType()) {
+	    case 'b':
+		t = "Block special device.";
+		break;
+	    case 'c':
+		t = "Character special device.";
+		break;
+	    case 'd':
+		t = "Directory.";
+		break;
+	    case 'e':
+		t = "Editable file.";
+		break;
+	    case 'f':
+		t = "Regular file.";
+		break;
+	    case 'i':
+		t = "Information file.";
+		break;
+	    case 'l':
+		t = "Hard linked file.";
+		break;
+	    case 'p':
+		t = "Named pipe.";
+		break;
+	    case 's':
+		t = "Symbolic link.";
+		break;
+	    case 'v':
+		t = "Volatile file.";
+		break;
+	    case 'x':
+		t = "Directory exclusive to this package.";
+		break;
+	    default:
+		t = "Unknown.";
 	}
 	return t;
     }
+
+    /**
+     * Views of the same row of the same table are equal, otherwise
+     * entries are only equal to themselves.
+     */
+    @Override
+    public boolean equals(Object o) {
+	if (table == null || !(o instanceof ContentsFileDetail)) {
+	    return this == o;
+	}
+	ContentsFileDetail cfd = (ContentsFileDetail) o;
+	return table == cfd.table && row == cfd.row;
+    }
+
+    @Override
+    public int hashCode() {
+	return (table == null) ? super.hashCode() : row;
+    }
 }
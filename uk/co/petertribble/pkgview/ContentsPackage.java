@@ -24,10 +24,15 @@ package uk.co.petertribble.pkgview;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * Represent the files contained in a Solaris package.
  *
+ * The statistics are accumulated as files are added, so asking for them
+ * is cheap.
+ *
  * @author Peter Tribble
  * @version 1.0
  */
@@ -36,19 +41,43 @@ public class ContentsPackage {
     private Set <ContentsFileDetail> fileset;
     private ContentsParser cp;
 
+    // if backed by a ContentsTable, the rows that are in this package
+    private ContentsTable table;
+    private int[] rows;
+    private int nrows;
+
+    // running totals
+    private int ndirs;
+    private int nhardlinks;
+    private int nsymlinks;
+    private int ndevices;
+    private int nshared;
+    private long space;
+
     public ContentsPackage() {
 	fileset = new HashSet <ContentsFileDetail> ();
     }
 
+    /**
+     * Create an empty ContentsPackage whose entries are rows in the given
+     * ContentsTable.
+     *
+     * @param table the ContentsTable holding the entries
+     */
+    public ContentsPackage(ContentsTable table) {
+	this.table = table;
+	rows = new int[16];
+    }
+
     public ContentsPackage(PackageCluster pc) {
 	fileset = new HashSet <ContentsFileDetail> ();
-	cp = ContentsParser.getInstance();
+	cp = ContentsParser.getLazyInstance();
 	addPkgFiles(pc);
     }
 
     public ContentsPackage(MetaCluster mc) {
 	fileset = new HashSet <ContentsFileDetail> ();
-	cp = ContentsParser.getInstance();
+	cp = ContentsParser.getLazyInstance();
 	for (PackageCluster pc : mc.getClusters()) {
 	    addPkgFiles(pc);
 	}
@@ -58,7 +87,101 @@ public class ContentsPackage {
     }
 
     public void addFile(ContentsFileDetail cfd) {
-	fileset.add(cfd);
+	if (fileset.add(cfd)) {
+	    count(cfd, 1);
+	}
+    }
+
+    /*
+     * Adjust the running totals for an entry being added (delta 1)
+     * or removed (delta -1).
+     */
+    private void count(ContentsFileDetail cfd, int delta) {
+	if (cfd.isDirectory()) {
+	    ndirs += delta;
+	} else if (cfd.isHardLink()) {
+	    nhardlinks += delta;
+	} else if (cfd.isSymLink()) {
+	    nsymlinks += delta;
+	} else if (cfd.isDevice()) {
+	    ndevices += delta;
+	} else if (cfd.isRegular()) {
+	    space += delta*cfd.sizeValue();
+	}
+	if (cfd.isShared()) {
+	    nshared += delta;
+	}
+    }
+
+    /**
+     * Add all the files in another ContentsPackage to this one.
+     *
+     * @param cpp the ContentsPackage whose files are to be added
+     */
+    public void addFiles(ContentsPackage cpp) {
+	if (table != null && cpp.table == table) {
+	    for (int i = 0; i < cpp.nrows; i++) {
+		addRow(cpp.rows[i]);
+	    }
+	} else {
+	    for (ContentsFileDetail cfd : cpp.getDetails()) {
+		addFile(cfd);
+	    }
+	}
+    }
+
+    /*
+     * Return a copy of this package, which can be modified without
+     * affecting the original. If the entries are rows of a ContentsTable,
+     * those of the copy are the same rows of ntable, a copy of that table.
+     */
+    ContentsPackage copy(ContentsTable ntable) {
+	ContentsPackage cpp;
+	if (table == null) {
+	    cpp = new ContentsPackage();
+	    cpp.fileset.addAll(fileset);
+	} else {
+	    cpp = new ContentsPackage(ntable);
+	    cpp.rows = Arrays.copyOf(rows, Math.max(nrows, 16));
+	    cpp.nrows = nrows;
+	}
+	cpp.ndirs = ndirs;
+	cpp.nhardlinks = nhardlinks;
+	cpp.nsymlinks = nsymlinks;
+	cpp.ndevices = ndevices;
+	cpp.nshared = nshared;
+	cpp.space = space;
+	return cpp;
+    }
+
+    /*
+     * Remove any of the given rows of the backing ContentsTable from
+     * this package. This must be done before the rows are removed
+     * from the table.
+     */
+    void removeRows(BitSet removed) {
+	int j = 0;
+	for (int i = 0; i < nrows; i++) {
+	    if (removed.get(rows[i])) {
+		count(new ContentsFileDetail(table, rows[i]), -1);
+	    } else {
+		rows[j++] = rows[i];
+	    }
+	}
+	nrows = j;
+    }
+
+    /**
+     * Add a row of the backing ContentsTable to this package.
+     *
+     * @param row the row to add
+     */
+    public void addRow(int row) {
+	if (nrows == rows.length) {
+	    rows = Arrays.copyOf(rows, nrows*2);
+	}
+	rows[nrows++] = row;
+	count(new ContentsFileDetail(table, row), 1);
     }
 
     private void addPkgFiles(PackageCluster pc) {
@@ -70,87 +193,64 @@ public class ContentsPackage {
     private void addPkgFiles(SolarisPackage pkg) {
 	ContentsPackage cpp = cp.getPackage(pkg.getName());
 	if (cpp != null) {
-	    fileset.addAll(cpp.getDetails());
+	    addFiles(cpp);
 	}
     }
 
     public int numEntries() {
-	return fileset.size();
+	return (table == null) ? fileset.size() : nrows;
     }
 
     public int numDirectories() {
-	int i = 0;
-	for (ContentsFileDetail cfd : fileset) {
-	    if (cfd.isDirectory()) {
-		i++;
-	    }
-	}
-	return i;
+	return ndirs;
     }
 
     /*
      * pkginfo -l reports "linked files" just for hard links
      */
     public int numHardLinks() {
-	int i = 0;
-	for (ContentsFileDetail cfd : fileset) {
-	    if (cfd.isHardLink()) {
-		i++;
-	    }
-	}
-	return i;
+	return nhardlinks;
     }
 
     public int numSymLinks() {
-	int i = 0;
-	for (ContentsFileDetail cfd : fileset) {
-	    if (cfd.isSymLink()) {
-		i++;
-	    }
-	}
-	return i;
+	return nsymlinks;
     }
 
     /*
      * Devices
      */
     public int numDevices() {
-	int i = 0;
-	for (ContentsFileDetail cfd : fileset) {
-	    if (cfd.isDevice()) {
-		i++;
-	    }
-	}
-	return i;
+	return ndevices;
     }
 
     /*
      * Shared files - contained in more than one package
      */
     public int numShared() {
-	int i = 0;
-	for (ContentsFileDetail cfd : fileset) {
-	    if (cfd.isShared()) {
-		i++;
-	    }
-	}
-	return i;
+	return nshared;
     }
 
     /*
-     * Add up the space used
+     * The space used by regular files
      */
     public long spaceUsed() {
-	long l = 0;
-	for (ContentsFileDetail cfd : fileset) {
-	    if (cfd.isRegular()) {
-		l += Long.parseLong(cfd.getSize());
-	    }
-	}
-	return l;
+	return space;
     }
 
+    /**
+     * Return the entries in this package. If this package is backed by
+     * a ContentsTable, the Set is newly created each time.
+     *
+     * @return the Set of entries in this package
+     */
     public Set <ContentsFileDetail> getDetails() {
-	return fileset;
+	if (table == null) {
+	    return fileset;
+	}
+	Set <ContentsFileDetail> s = new HashSet <ContentsFileDetail> (nrows*2);
+	for (int i = 0; i < nrows; i++) {
+	    s.add(new ContentsFileDetail(table, rows[i]));
+	}
+	return s;
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * An index of where each package's lines are in the contents file, so
+ * that the entries for a single package can be loaded without parsing
+ * the whole file.
+ *
+ * Building the index is a single pass over the file that just picks
+ * out the package names at the end of each line and records the offset
+ * of the line. Packages are then loaded on demand by reading only their
+ * own lines, and kept. An entry shared by several packages is the same
+ * ContentsFileDetail in each. If the contents file changes, the index is
+ * built again.
+ */
+public class ContentsPackageIndex {
+
+    private static final int WINDOW = 65536;
+
+    private String contents;
+    private String key;
+    private Map <String, Offsets> offsets;
+    private Map <String, ContentsPackage> loaded;
+    // entries already read, by offset, so shared entries are only read once
+    private Map <Long, ContentsFileDetail> lines;
+
+    /**
+     * Create an index of the packages in the given contents file.
+     *
+     * @param contents the name of the contents file
+     *
+     * @throws IOException if the contents file can't be read
+     */
+    public ContentsPackageIndex(String contents) throws IOException {
+	this.contents = contents;
+	build();
+    }
+
+    private void build() throws IOException {
+	key = ContentsSnapshot.fileKey(new File(contents));
+	offsets = new HashMap <String, Offsets> (2048);
+	loaded = new HashMap <String, ContentsPackage> ();
+	lines = new HashMap <Long, ContentsFileDetail> ();
+	InputStream in = new FileInputStream(contents);
+	try {
+	    ContentsTokenizer tok = new ContentsTokenizer(in);
+	    while (tok.next()) {
+		for (int i = 0; i < tok.numPackages(); i++) {
+		    String pkgname = tok.getPackage(i);
+		    Offsets o = offsets.get(pkgname);
+		    if (o == null) {
+			o = new Offsets();
+			offsets.put(pkgname, o);
+		    }
+		    o.add(tok.getOffset());
+		}
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Return the names of all the packages that have entries in the
+     * contents file.
+     *
+     * @return the Set of package names
+     */
+    public synchronized Set <String> getPackageNames() {
+	return offsets.keySet();
+    }
+
+    /**
+     * Return the entries in the given package, reading them from the
+     * contents file the first time the package is asked for.
+     *
+     * @param pkgname the name of the package
+     *
+     * @return the ContentsPackage, or null if the package has no entries
+     */
+    public synchronized ContentsPackage getPackage(String pkgname) {
+	String nkey = ContentsSnapshot.fileKey(new File(contents));
+	try {
+	    if (nkey != null && !nkey.equals(key)) {
+		build();
+	    }
+	    ContentsPackage cpp = loaded.get(pkgname);
+	    if (cpp == null) {
+		Offsets o = offsets.get(pkgname);
+		if (o == null) {
+		    return null;
+		}
+		cpp = load(o);
+		loaded.put(pkgname, cpp);
+	    }
+	    return cpp;
+	} catch (IOException ioe) {
+	    return null;
+	}
+    }
+
+    /*
+     * Read the lines at the given offsets, which are in file order. The
+     * file is read a window at a time, so lines close together only cost
+     * one read.
+     */
+    private ContentsPackage load(Offsets o) throws IOException {
+	ContentsPackage cpp = new ContentsPackage();
+	ContentsTokenizer tok = new ContentsTokenizer(new byte[0], 0, 0);
+	byte[] b = new byte[WINDOW];
+	long wstart = 0;
+	int wlen = 0;
+	RandomAccessFile raf = new RandomAccessFile(contents, "r");
+	try {
+	    FileChannel fc = raf.getChannel();
+	    for (int i = 0; i < o.count; i++) {
+		long off = o.offsets[i];
+		ContentsFileDetail cfd = lines.get(off);
+		if (cfd != null) {
+		    cpp.addFile(cfd);
+		    continue;
+		}
+		int start = (off < wstart || off - wstart >= wlen) ? -1
+		    : (int) (off - wstart);
+		int end = lineEnd(b, start, wlen);
+		if (end < 0) {
+		    // not all in the current window, read a new one
+		    for (;;) {
+			wstart = off;
+			wlen = read(fc, b, off);
+			start = 0;
+			end = lineEnd(b, 0, wlen);
+			if (end >= 0 || wlen < b.length) {
+			    break;
+			}
+			// a very long line
+			b = new byte[b.length*2];
+		    }
+		    if (end < 0) {
+			// the last line, with no newline
+			end = wlen;
+		    }
+		}
+		if (tok.tokenize(b, start, end - start)) {
+		    cfd = new ContentsFileDetail(tok);
+		    lines.put(off, cfd);
+		    cpp.addFile(cfd);
+		}
+	    }
+	} finally {
+	    raf.close();
+	}
+	return cpp;
+    }
+
+    /*
+     * The index of the newline ending the line starting at start, or -1
+     * if it isn't in the first len bytes.
+     */
+    private static int lineEnd(byte[] b, int start, int len) {
+	if (start < 0) {
+	    return -1;
+	}
+	for (int i = start; i < len; i++) {
+	    if (b[i] == '\n') {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    private static int read(FileChannel fc, byte[] b, long off)
+		throws IOException {
+	ByteBuffer bb = ByteBuffer.wrap(b);
+	while (bb.hasRemaining()) {
+	    if (fc.read(bb, off + bb.position()) < 0) {
+		break;
+	    }
+	}
+	return bb.position();
+    }
+
+    /*
+     * A growable list of line offsets.
+     */
+    static class Offsets {
+	private long[] offsets = new long[8];
+	private int count;
+
+	void add(long off) {
+	    if (count == offsets.length) {
+		offsets = Arrays.copyOf(offsets, count*2);
+	    }
+	    offsets[count++] = off;
+	}
+    }
+}
@@ -24,7 +24,21 @@ package uk.co.petertribble.pkgview;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 /**
  * We parse the Solaris contents file and create two hashes.
@@ -36,39 +50,180 @@ import java.io.*;
  *
  * The second hash is by package. The key is the package name,
  * and the value is a List of ContentsFileDetail's.
+ *
+ * By default the file is read serially, one line at a time. Setting the
+ * system property pkgview.contents.parallel to true instead maps the file
+ * into memory and parses it in chunks on a fork-join pool; the resulting
+ * hashes are identical.
+ *
+ * If the system property pkgview.contents.compact is true, the entries
+ * are held in a ContentsTable rather than as an object per line, which
+ * uses far less memory. In that case the fileHash isn't populated, and
+ * the ContentsFileDetail objects handed out are views of the table.
+ *
+ * If the system property pkgview.contents.cache names a directory, the
+ * table is saved there as a ContentsSnapshot, and subsequently loaded
+ * from there rather than parsing the contents file, for as long as the
+ * contents file remains unchanged. This implies the compact form.
+ *
+ * Calling startWatching() keeps this ContentsParser up to date as the
+ * contents file is modified by pkgadd and pkgrm. With the compact form
+ * only the lines that have changed are parsed and patched into a copy
+ * of the table, otherwise the whole file is parsed again. Either way,
+ * everything parsed is held in a single ContentsState, which is swapped
+ * in with one write, so that readers never see a table part way through
+ * being changed, or a table that doesn't match the packages. Registered
+ * ChangeListeners are told when the data has changed.
+ *
+ * A ContentsParser obtained from getLazyInstance() starts out with just
+ * a ContentsPackageIndex, so that individual packages can be shown
+ * quickly while the whole file is parsed in the background.
  */
 public class ContentsParser {
 
     private static ContentsParser cpinstance;
 
-    private Map <String, ContentsFileDetail> fileHash;
-    private Map <String, ContentsPackage> pkgHash;
+    private volatile ContentsState state;
+    // until the whole file is loaded, packages are read on demand
+    private volatile ContentsPackageIndex pkgIndex;
+
+    private String contents;
+    private String cachedir;
+    // the state of the contents file as parsed
+    private String parsedKey;
+
+    /*
+     * For incremental updates, a hash of each line of the contents file
+     * and the table row holding that line, in file order.
+     */
+    private long[] lineHashes;
+    private int[] lineRows;
+
+    private Thread watcher;
+    private List <ChangeListener> listeners
+	= new CopyOnWriteArrayList <ChangeListener> ();
 
     private static final String CONTENTS_FILE = "/var/sadm/install/contents";
 
     /*
-     * Parse the default contents file.
+     * Chunks smaller than this aren't worth handing to another thread.
      */
-    private ContentsParser() {
-	this(CONTENTS_FILE);
-    }
+    private static final int MIN_CHUNK = 256*1024;
 
     /*
      * Parse a contents file.
      */
     private ContentsParser(String contents) {
-	fileHash = new HashMap <String, ContentsFileDetail> (65536);
-	pkgHash = new HashMap <String, ContentsPackage> (2048);
-	parse(contents);
+	this(contents, false);
+    }
+
+    /*
+     * Parse a contents file. If lazy, just index where each package's
+     * lines are, unless there's a valid snapshot, which is quicker
+     * to load than building the index.
+     */
+    private ContentsParser(String contents, boolean lazy) {
+	this.contents = contents;
+	cachedir = System.getProperty("pkgview.contents.cache");
+	if (lazy && (cachedir == null || !new ContentsSnapshot(contents,
+					new File(cachedir)).isValid())) {
+	    try {
+		pkgIndex = new ContentsPackageIndex(contents);
+		return;
+	    } catch (IOException ioe) {}
+	}
+	load();
     }
 
-    public static synchronized ContentsParser getInstance() {
+    private void load() {
+	parsedKey = ContentsSnapshot.fileKey(new File(contents));
+	if (cachedir != null) {
+	    state = parseCached(contents, new File(cachedir));
+	} else if (Boolean.getBoolean("pkgview.contents.compact")) {
+	    ContentsTable t = parseCompact(contents);
+	    state = new ContentsState(null, addTablePackages(t), t, null);
+	} else {
+	    Map <String, ContentsFileDetail> fmap
+		= new HashMap <String, ContentsFileDetail> (65536);
+	    Map <String, ContentsPackage> pmap
+		= new HashMap <String, ContentsPackage> (2048);
+	    if (Boolean.getBoolean("pkgview.contents.parallel")) {
+		parseParallel(contents, fmap, pmap);
+	    } else {
+		parse(contents, fmap, pmap);
+	    }
+	    state = new ContentsState(fmap, pmap, null, null);
+	}
+    }
+
+    /*
+     * If we only have the package index, parse the whole file now.
+     */
+    private void ensureLoaded() {
+	if (pkgIndex != null) {
+	    synchronized (this) {
+		if (pkgIndex != null) {
+		    load();
+		    pkgIndex = null;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Return the shared ContentsParser, with the contents file fully
+     * parsed.
+     *
+     * @return the shared ContentsParser
+     */
+    public static ContentsParser getInstance() {
+	ContentsParser cp;
+	synchronized (ContentsParser.class) {
+	    if (cpinstance == null) {
+		cpinstance = new ContentsParser(CONTENTS_FILE, false);
+	    }
+	    cp = cpinstance;
+	}
+	cp.ensureLoaded();
+	return cp;
+    }
+
+    /**
+     * Return the shared ContentsParser, which may not have parsed the
+     * contents file yet. If not, getPackage() reads just the lines for
+     * the requested package, and anything else causes the whole file to
+     * be parsed.
+     *
+     * @return the shared ContentsParser
+     */
+    public static synchronized ContentsParser getLazyInstance() {
 	if (cpinstance == null) {
-	    cpinstance = new ContentsParser();
+	    cpinstance = new ContentsParser(CONTENTS_FILE, true);
 	}
 	return cpinstance;
     }
 
+    /**
+     * Return whether the contents file has been fully parsed.
+     *
+     * @return false if only the package index has been built
+     */
+    public boolean isLoaded() {
+	return pkgIndex == null;
+    }
+
+    /**
+     * Return a key describing the contents file as parsed, which
+     * changes whenever the file is rewritten, such as when packages
+     * are added or removed.
+     *
+     * @return the key, or null if the contents file couldn't be read
+     */
+    public synchronized String getContentsKey() {
+	return isLoaded() ? parsedKey
+	    : ContentsSnapshot.fileKey(new File(contents));
+    }
+
     /*
      * Oddly, using this version is significantly slower, although it does
      * consume rather less memory. And timing of the actual reading of the
@@ -84,31 +239,701 @@ public class ContentsParser {
      * So the actual parse is pretty quick - it's populating the maps
      * that really adds to the cost.
      */
-    private void parse(String contents) {
+    private static void parse(String contents,
+			Map <String, ContentsFileDetail> fmap,
+			Map <String, ContentsPackage> pmap) {
+	try {
+	    InputStream in = new FileInputStream(contents);
+	    try {
+		ContentsTokenizer tok = new ContentsTokenizer(in);
+		while (tok.next()) {
+		    addDetail(new ContentsFileDetail(tok), fmap, pmap);
+		}
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException ioe) {}
+    }
+
+    /*
+     * Parse the contents file into a ContentsTable, so there's just a
+     * row per line rather than an object.
+     */
+    private static ContentsTable parseCompact(String contents) {
+	ContentsTable table = new ContentsTable();
+	try {
+	    InputStream in = new FileInputStream(contents);
+	    try {
+		ContentsTokenizer tok = new ContentsTokenizer(in);
+		while (tok.next()) {
+		    table.add(tok);
+		}
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException ioe) {}
+	table.trim();
+	return table;
+    }
+
+    /*
+     * Use a saved snapshot of the table if it's still valid, otherwise
+     * parse the contents file and save a new snapshot.
+     */
+    private ContentsState parseCached(String contents, File cachedir) {
+	ContentsSnapshot snap = new ContentsSnapshot(contents, cachedir,
+						parsedKey);
+	ContentsTable table = snap.load();
+	if (table == null) {
+	    table = parseCompact(contents);
+	    ContentsState cs = new ContentsState(null,
+				addTablePackages(table), table, null);
+	    snap.save(table, cs.pathFilter);
+	    return cs;
+	}
+	return new ContentsState(null, addTablePackages(table), table,
+				snap.getFilter());
+    }
+
+    /*
+     * Build the package hash from the rows in the table.
+     */
+    private static Map <String, ContentsPackage> addTablePackages(
+			ContentsTable table) {
+	Map <String, ContentsPackage> pkgHash
+	    = new HashMap <String, ContentsPackage> (2048);
+	ContentsPackage[] pkgs = new ContentsPackage[table.numPackageIds()];
+	for (int row = 0; row < table.size(); row++) {
+	    if (!table.isLive(row)) {
+		continue;
+	    }
+	    for (int i = 0; i < table.numPackages(row); i++) {
+		int id = table.getPackageId(row, i);
+		if (pkgs[id] == null) {
+		    pkgs[id] = new ContentsPackage(table);
+		    pkgHash.put(table.getPackageName(id), pkgs[id]);
+		}
+		pkgs[id].addRow(row);
+	    }
+	}
+	return pkgHash;
+    }
+
+    /*
+     * Add an entry to the given file and package hashes.
+     */
+    private static void addDetail(ContentsFileDetail cfd,
+			Map <String, ContentsFileDetail> fmap,
+			Map <String, ContentsPackage> pmap) {
+	fmap.put(cfd.getName(), cfd);
+	for (String pkgname : cfd.getPackageNames()) {
+	    ContentsPackage cp = pmap.get(pkgname);
+	    if (cp == null) {
+		cp = new ContentsPackage();
+		pmap.put(pkgname, cp);
+	    }
+	    cp.addFile(cfd);
+	}
+    }
+
+    /*
+     * Map the contents file into memory and split it into chunks on
+     * line boundaries. Each chunk builds its own pair of hashes in
+     * parallel, and they're merged in file order afterwards so that
+     * the result is the same as a serial parse.
+     */
+    private static void parseParallel(String contents,
+			Map <String, ContentsFileDetail> fmap,
+			Map <String, ContentsPackage> pmap) {
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(contents, "r");
+	    try {
+		FileChannel fc = raf.getChannel();
+		long len = fc.size();
+		if (len > Integer.MAX_VALUE) {
+		    // too big to map in one go
+		    parse(contents, fmap, pmap);
+		    return;
+		}
+		ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, len);
+		List <ContentsChunk> chunks = new ArrayList <ContentsChunk> ();
+		int nchunks = Runtime.getRuntime().availableProcessors()*4;
+		int csize = Math.max(MIN_CHUNK, (int) (len/nchunks));
+		int start = 0;
+		while (start < len) {
+		    int end = (int) Math.min(len, (long) start + csize);
+		    while (end < len && buf.get(end - 1) != '\n') {
+			end++;
+		    }
+		    chunks.add(new ContentsChunk(buf, start, end));
+		    start = end;
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+		    pool.invoke(new ContentsSplitter(chunks));
+		} finally {
+		    pool.shutdown();
+		}
+		for (ContentsChunk chunk : chunks) {
+		    fmap.putAll(chunk.fmap);
+		    for (Map.Entry <String, ContentsPackage> me
+			     : chunk.pmap.entrySet()) {
+			ContentsPackage cp = pmap.get(me.getKey());
+			if (cp == null) {
+			    pmap.put(me.getKey(), me.getValue());
+			} else {
+			    cp.addFiles(me.getValue());
+			}
+		    }
+		}
+	    } finally {
+		raf.close();
+	    }
+	} catch (IOException ioe) {}
+    }
+
+    /*
+     * Run all the chunks, waiting for them all to finish.
+     */
+    static class ContentsSplitter extends RecursiveTask <Object> {
+	private final List <ContentsChunk> chunks;
+
+	ContentsSplitter(List <ContentsChunk> chunks) {
+	    this.chunks = chunks;
+	}
+
+	@Override
+	protected Object compute() {
+	    ForkJoinTask.invokeAll(chunks);
+	    return null;
+	}
+    }
+
+    /*
+     * Parse one chunk of the mapped contents file, from start up to
+     * (but not including) end. The chunk boundaries are always at the
+     * start of a line.
+     */
+    static class ContentsChunk extends RecursiveTask <Object> {
+	private final ByteBuffer buf;
+	private final int start;
+	private final int end;
+	private Map <String, ContentsFileDetail> fmap;
+	private Map <String, ContentsPackage> pmap;
+
+	ContentsChunk(ByteBuffer buf, int start, int end) {
+	    this.buf = buf;
+	    this.start = start;
+	    this.end = end;
+	}
+
+	@Override
+	protected Object compute() {
+	    byte[] b = new byte[end - start];
+	    ByteBuffer dup = buf.duplicate();
+	    dup.position(start);
+	    dup.get(b);
+	    fmap = new HashMap <String, ContentsFileDetail> ();
+	    pmap = new HashMap <String, ContentsPackage> ();
+	    ContentsTokenizer tok = new ContentsTokenizer(b, 0, b.length);
+	    try {
+		while (tok.next()) {
+		    addDetail(new ContentsFileDetail(tok), fmap, pmap);
+		}
+	    } catch (IOException ioe) {
+		// can't happen, we're reading from memory
+	    }
+	    return null;
+	}
+    }
+
+    /**
+     * Read the default contents file, passing each entry to the given
+     * visitor without keeping it. This doesn't create or use the shared
+     * ContentsParser instance, and uses very little memory.
+     *
+     * @param visitor the ContentsVisitor to receive each entry
+     *
+     * @throws IOException if the contents file can't be read
+     */
+    public static void scan(ContentsVisitor visitor) throws IOException {
+	scan(CONTENTS_FILE, visitor);
+    }
+
+    /**
+     * Read a contents file, passing each entry to the given visitor
+     * without keeping it.
+     *
+     * @param contents the name of the contents file
+     * @param visitor the ContentsVisitor to receive each entry
+     *
+     * @throws IOException if the contents file can't be read
+     */
+    public static void scan(String contents, ContentsVisitor visitor)
+		throws IOException {
+	InputStream in = new FileInputStream(contents);
+	try {
+	    ContentsTokenizer tok = new ContentsTokenizer(in);
+	    while (tok.next()) {
+		visitor.visit(new ContentsFileDetail(tok));
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Register a listener to be told when the data in this ContentsParser
+     * has been updated. Listeners are called on the thread watching the
+     * contents file, not the event dispatch thread.
+     *
+     * @param l the ChangeListener to be notified of updates
+     */
+    public void addChangeListener(ChangeListener l) {
+	listeners.add(l);
+    }
+
+    /**
+     * Stop notifying the given listener of updates.
+     *
+     * @param l the ChangeListener to be removed
+     */
+    public void removeChangeListener(ChangeListener l) {
+	listeners.remove(l);
+    }
+
+    /**
+     * Start watching the contents file for changes, in a background
+     * thread. When the file changes, it is reread and any listeners
+     * are notified.
+     */
+    public synchronized void startWatching() {
+	if (watcher == null) {
+	    watcher = new Thread(new ContentsWatcher(), "contents watcher");
+	    watcher.setDaemon(true);
+	    watcher.start();
+	}
+    }
+
+    /**
+     * Bring this ContentsParser up to date with the contents file, if
+     * the contents file has changed since it was parsed.
+     *
+     * @return true if the contents file had changed
+     */
+    public synchronized boolean refresh() {
+	ensureLoaded();
+	String key = ContentsSnapshot.fileKey(new File(contents));
+	if (key == null || key.equals(parsedKey)) {
+	    return false;
+	}
+	if (state.table == null || lineHashes == null) {
+	    reload();
+	} else {
+	    try {
+		update(key);
+	    } catch (IOException ioe) {
+		reload();
+	    }
+	}
+	for (ChangeListener l : listeners) {
+	    l.stateChanged(new ChangeEvent(this));
+	}
+	return true;
+    }
+
+    /*
+     * Parse the whole contents file again from scratch.
+     */
+    private void reload() {
+	ContentsParser ncp = new ContentsParser(contents);
+	state = ncp.state;
+	parsedKey = ncp.parsedKey;
+	lineHashes = null;
+	lineRows = null;
+    }
+
+    /*
+     * Record a hash of each line of the contents file, and the table
+     * row for that line, so we can later work out what has changed.
+     * If the file has changed since we parsed it, start again. If it
+     * changes while we're reading it, the hashes wouldn't match the
+     * table, so record nothing, and the next refresh parses it again.
+     */
+    private synchronized void recordLines() throws IOException {
+	if (state.table == null) {
+	    return;
+	}
+	String key = ContentsSnapshot.fileKey(new File(contents));
+	if (key == null || !key.equals(parsedKey)) {
+	    reload();
+	}
+	ContentsTable table = state.table;
+	long[] hashes = new long[table.size()];
+	int[] rows = new int[table.size()];
+	int n = 0;
+	BufferedReader in = readLines();
+	try {
+	    String s = null;
+	    while ((s = in.readLine()) != null) {
+		if (n == hashes.length) {
+		    hashes = Arrays.copyOf(hashes, n*2 + 16);
+		    rows = Arrays.copyOf(rows, n*2 + 16);
+		}
+		hashes[n] = lineHash(s);
+		rows[n] = table.find(ContentsFileDetail.linePath(s));
+		n++;
+	    }
+	} finally {
+	    in.close();
+	}
+	if (!parsedKey.equals(ContentsSnapshot.fileKey(new File(contents)))) {
+	    lineHashes = null;
+	    lineRows = null;
+	    return;
+	}
+	lineHashes = Arrays.copyOf(hashes, n);
+	lineRows = Arrays.copyOf(rows, n);
+    }
+
+    /*
+     * Work out which lines of the contents file have changed, and patch
+     * just those into the table and the affected packages.
+     *
+     * Lines that haven't changed at the start and end of the file are
+     * found by comparing hashes, without parsing anything. In between,
+     * lines are matched up by path name, and only those lines that are
+     * new or different are parsed.
+     *
+     * The file is read twice, so if it isn't the file described by key
+     * after the second read, it may have been replaced in between and
+     * the two reads can't be trusted to match. Nothing has been changed
+     * by then, as the patching is done to copies, so the update is
+     * abandoned with an IOException and the file parsed again.
+     */
+    private void update(String key) throws IOException {
+	ContentsState cs = state;
+	// first pass, hash every line
+	long[] nhashes = new long[lineHashes.length + 1024];
+	int nlines = 0;
+	BufferedReader in = readLines();
 	try {
-	    BufferedReader in
-		= new BufferedReader(new FileReader(contents));
 	    String s = null;
 	    while ((s = in.readLine()) != null) {
-		ContentsFileDetail cfd = new ContentsFileDetail(s);
-		fileHash.put(cfd.getName(), cfd);
-		for (String pkgname : cfd.getPackageNames()) {
-		    ContentsPackage cp = pkgHash.get(pkgname);
-		    if (cp == null) {
-			cp = new ContentsPackage();
-			pkgHash.put(pkgname, cp);
+		if (nlines == nhashes.length) {
+		    nhashes = Arrays.copyOf(nhashes, nlines*2);
+		}
+		nhashes[nlines++] = lineHash(s);
+	    }
+	} finally {
+	    in.close();
+	}
+	int olines = lineHashes.length;
+	int head = 0;
+	while (head < olines && head < nlines
+		&& lineHashes[head] == nhashes[head]) {
+	    head++;
+	}
+	int tail = 0;
+	while (tail < olines - head && tail < nlines - head
+		&& lineHashes[olines - 1 - tail]
+		    == nhashes[nlines - 1 - tail]) {
+	    tail++;
+	}
+
+	// the old lines in the changed region, by path name
+	Map <String, Integer> oldlines = new HashMap <String, Integer> ();
+	for (int i = head; i < olines - tail; i++) {
+	    if (lineRows[i] >= 0) {
+		oldlines.put(cs.table.getName(lineRows[i]), i);
+	    }
+	}
+
+	// second pass, match up the new lines in the changed region, and
+	// add the new and changed ones to a copy of the table
+	ContentsTable ntable = cs.table.copy();
+	int[] nrows = new int[nlines];
+	System.arraycopy(lineRows, 0, nrows, 0, head);
+	System.arraycopy(lineRows, olines - tail, nrows, nlines - tail, tail);
+	BitSet removed = new BitSet();
+	List <Integer> added = new ArrayList <Integer> ();
+	int n = 0;
+	in = readLines();
+	try {
+	    String s = null;
+	    while ((s = in.readLine()) != null && n < nlines - tail) {
+		if (n >= head) {
+		    Integer oi
+			= oldlines.remove(ContentsFileDetail.linePath(s));
+		    if (oi != null && lineHashes[oi] == nhashes[n]) {
+			nrows[n] = lineRows[oi];
+		    } else {
+			if (oi != null) {
+			    removed.set(lineRows[oi]);
+			}
+			// must be in the filter before it can be found
+			cs.pathFilter.add(ContentsFileDetail.linePath(s));
+			nrows[n] = ntable.add(new ContentsFileDetail(s));
+			added.add(nrows[n]);
 		    }
-		    cp.addFile(cfd);
 		}
+		n++;
 	    }
-	} catch (IOException ioe) {}
+	} finally {
+	    in.close();
+	}
+	if (n != nlines - tail
+		|| !key.equals(ContentsSnapshot.fileKey(new File(contents)))) {
+	    throw new IOException("Contents file changed during update");
+	}
+	for (Integer oi : oldlines.values()) {
+	    removed.set(lineRows[oi]);
+	}
+
+	// the packages must refer to the new table, then patch the
+	// affected ones, and swap the lot in
+	Map <String, ContentsPackage> npkgs
+	    = new HashMap <String, ContentsPackage> ();
+	for (Map.Entry <String, ContentsPackage> me
+		: cs.pkgHash.entrySet()) {
+	    npkgs.put(me.getKey(), me.getValue().copy(ntable));
+	}
+	Map <String, ContentsPackage> changed
+	    = new HashMap <String, ContentsPackage> ();
+	for (int row = removed.nextSetBit(0); row >= 0;
+		row = removed.nextSetBit(row + 1)) {
+	    for (String pkgname : ntable.getPackageNames(row)) {
+		changedPackage(pkgname, ntable, npkgs, changed);
+	    }
+	}
+	for (ContentsPackage cpp : changed.values()) {
+	    cpp.removeRows(removed);
+	}
+	for (int row = removed.nextSetBit(0); row >= 0;
+		row = removed.nextSetBit(row + 1)) {
+	    ntable.remove(row);
+	}
+	for (Integer row : added) {
+	    for (String pkgname : ntable.getPackageNames(row)) {
+		changedPackage(pkgname, ntable, npkgs, changed).addRow(row);
+	    }
+	}
+	for (Map.Entry <String, ContentsPackage> me : changed.entrySet()) {
+	    if (me.getValue().numEntries() == 0) {
+		npkgs.remove(me.getKey());
+	    }
+	}
+	ContentsState ncs = new ContentsState(null, npkgs, ntable,
+		cs.pathFilter.isFull() ? null : cs.pathFilter);
+	state = ncs;
+	lineHashes = Arrays.copyOf(nhashes, nlines);
+	lineRows = nrows;
+	parsedKey = key;
+	if (cachedir != null) {
+	    // under the key of the file we read, not as it is now
+	    new ContentsSnapshot(contents, new File(cachedir), key).save(
+						ncs.table, ncs.pathFilter);
+	}
+    }
+
+    /*
+     * Return the named package from the new package hash, noting that
+     * it has changed, creating it if necessary.
+     */
+    private ContentsPackage changedPackage(String pkgname,
+			ContentsTable ntable,
+			Map <String, ContentsPackage> npkgs,
+			Map <String, ContentsPackage> changed) {
+	ContentsPackage cpp = changed.get(pkgname);
+	if (cpp == null) {
+	    cpp = npkgs.get(pkgname);
+	    if (cpp == null) {
+		cpp = new ContentsPackage(ntable);
+		npkgs.put(pkgname, cpp);
+	    }
+	    changed.put(pkgname, cpp);
+	}
+	return cpp;
+    }
+
+    /*
+     * Open the contents file to be read a line at a time, decoded the
+     * same way as the initial parse.
+     */
+    private BufferedReader readLines() throws IOException {
+	return new BufferedReader(new InputStreamReader(
+		new FileInputStream(contents), ContentsTokenizer.CHARSET));
+    }
+
+    /*
+     * A 64-bit FNV-1a hash of a line, so that changed lines can be
+     * spotted without keeping the old text.
+     */
+    private static long lineHash(String s) {
+	long h = 0xcbf29ce484222325L;
+	for (int i = 0; i < s.length(); i++) {
+	    h ^= s.charAt(i);
+	    h *= 0x100000001b3L;
+	}
+	return h;
+    }
+
+    /*
+     * Watch the directory containing the contents file. The packaging
+     * tools replace the contents file, possibly several times while
+     * installing a package, so wait until things have settled down
+     * before rereading it.
+     */
+    class ContentsWatcher implements Runnable {
+	public void run() {
+	    try {
+		recordLines();
+		Path cpath = Paths.get(contents).toAbsolutePath();
+		WatchService ws = FileSystems.getDefault().newWatchService();
+		cpath.getParent().register(ws,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		while (true) {
+		    WatchKey wk = ws.take();
+		    boolean seen = false;
+		    for (WatchEvent <?> we : wk.pollEvents()) {
+			if (cpath.getFileName().equals(we.context())) {
+			    seen = true;
+			}
+		    }
+		    wk.reset();
+		    if (seen) {
+			while ((wk = ws.poll(2, TimeUnit.SECONDS)) != null) {
+			    wk.pollEvents();
+			    wk.reset();
+			}
+			refresh();
+			if (lineHashes == null) {
+			    recordLines();
+			}
+		    }
+		}
+	    } catch (IOException ioe) {
+	    } catch (InterruptedException ie) {
+	    }
+	}
     }
 
+    /**
+     * Return all the entries whose path name starts with the given prefix,
+     * in sorted order. The first call builds a sorted index of all the
+     * path names.
+     *
+     * @param prefix the start of the path names to match
+     *
+     * @return a List of the matching entries
+     */
+    public List <ContentsFileDetail> getFileDetailsByPrefix(String prefix) {
+	ensureLoaded();
+	return state.getPathIndex().getByPrefix(prefix);
+    }
+
+    /**
+     * Return the entry for the given directory, and all the entries below
+     * it, in sorted order.
+     *
+     * @param dir the directory at the top of the tree
+     *
+     * @return a List of the matching entries
+     */
+    public List <ContentsFileDetail> getFileDetailsUnder(String dir) {
+	ensureLoaded();
+	return state.getPathIndex().getSubtree(dir);
+    }
+
+    /**
+     * Return the entry for the given path name. Most paths that aren't
+     * in the contents file are rejected by a ContentsBloomFilter without
+     * being looked up.
+     *
+     * @param s the path name to look up
+     *
+     * @return the matching entry, or null if the path doesn't belong to
+     * any package
+     */
     public ContentsFileDetail getFileDetail(String s) {
-	return fileHash.get(s);
+	ensureLoaded();
+	ContentsState cs = state;
+	if (!cs.pathFilter.mightContain(s)) {
+	    return null;
+	}
+	ContentsFileDetail cfd = (cs.table == null) ? cs.fileHash.get(s)
+	    : cs.table.getFileDetail(s);
+	cs.pathFilter.confirm(cfd != null);
+	return cfd;
+    }
+
+    /**
+     * Return the filter used to reject paths that aren't in the contents
+     * file, which keeps counts of how effective it has been.
+     *
+     * @return the ContentsBloomFilter of path names
+     */
+    public ContentsBloomFilter getPathFilter() {
+	ensureLoaded();
+	return state.pathFilter;
     }
 
     public ContentsPackage getPackage(String pkgname) {
-	return pkgHash.get(pkgname);
+	ContentsPackageIndex cpi = pkgIndex;
+	return (cpi == null) ? state.pkgHash.get(pkgname)
+	    : cpi.getPackage(pkgname);
+    }
+
+    /*
+     * Everything parsed from the contents file. This isn't changed once
+     * it has been published, so readers that fetch it once see a table,
+     * packages, and filter that all match; changes build a new one and
+     * swap it in. The one exception is that an update adds new paths to
+     * the filter in place, which is harmless as the filter only ever
+     * says a path might be present.
+     */
+    static final class ContentsState {
+	final Map <String, ContentsFileDetail> fileHash;
+	final Map <String, ContentsPackage> pkgHash;
+	final ContentsTable table;
+	final ContentsBloomFilter pathFilter;
+	// built on demand
+	private ContentsPathIndex pathIndex;
+
+	/*
+	 * Either fileHash or table is null. If pathFilter is null, a new
+	 * one is built, with some room for growth.
+	 */
+	ContentsState(Map <String, ContentsFileDetail> fileHash,
+		Map <String, ContentsPackage> pkgHash, ContentsTable table,
+		ContentsBloomFilter pathFilter) {
+	    this.fileHash = fileHash;
+	    this.pkgHash = pkgHash;
+	    this.table = table;
+	    if (pathFilter == null) {
+		if (table == null) {
+		    pathFilter = new ContentsBloomFilter(fileHash.size()
+						+ fileHash.size()/4);
+		    for (String s : fileHash.keySet()) {
+			pathFilter.add(s);
+		    }
+		} else {
+		    pathFilter = new ContentsBloomFilter(table.size()
+						+ table.size()/4);
+		    table.addNamesTo(pathFilter);
+		}
+	    }
+	    this.pathFilter = pathFilter;
+	}
+
+	synchronized ContentsPathIndex getPathIndex() {
+	    if (pathIndex == null) {
+		pathIndex = (table == null)
+		    ? new ContentsPathIndex(fileHash.values())
+		    : new ContentsPathIndex(table);
+	    }
+	    return pathIndex;
+	}
     }
 }
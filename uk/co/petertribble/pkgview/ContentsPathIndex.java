@@ -0,0 +1,173 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.nio.charset.Charset;
+
+/**
+ * A sorted index of the path names in the contents file, so that all the
+ * paths starting with a given prefix can be found with a binary search
+ * followed by a scan of just the matching entries.
+ *
+ * For a ContentsTable, the index is just an array of row numbers sorted
+ * by name, otherwise it's an array of the ContentsFileDetail objects.
+ */
+public class ContentsPathIndex {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ContentsFileDetail[] details;
+    private ContentsTable table;
+    private int[] rows;
+
+    /**
+     * Create a sorted index of the given entries.
+     *
+     * @param cfds the entries to index
+     */
+    public ContentsPathIndex(Collection <ContentsFileDetail> cfds) {
+	details = cfds.toArray(new ContentsFileDetail[cfds.size()]);
+	Arrays.sort(details, new Comparator <ContentsFileDetail> () {
+	    public int compare(ContentsFileDetail c1, ContentsFileDetail c2) {
+		return c1.getName().compareTo(c2.getName());
+	    }
+	});
+    }
+
+    /**
+     * Create a sorted index of the rows in a ContentsTable.
+     *
+     * @param table the ContentsTable to index
+     */
+    public ContentsPathIndex(final ContentsTable table) {
+	this.table = table;
+	int[] trows = table.indexedRows();
+	Integer[] srows = new Integer[trows.length];
+	for (int i = 0; i < trows.length; i++) {
+	    srows[i] = trows[i];
+	}
+	Arrays.sort(srows, new Comparator <Integer> () {
+	    public int compare(Integer r1, Integer r2) {
+		return table.compareNames(r1, r2);
+	    }
+	});
+	rows = new int[srows.length];
+	for (int i = 0; i < srows.length; i++) {
+	    rows[i] = srows[i];
+	}
+    }
+
+    /**
+     * Return all the entries whose path name starts with the given
+     * prefix, sorted by name.
+     *
+     * @param prefix the start of the path names to be returned
+     *
+     * @return a List of matching entries
+     */
+    public List <ContentsFileDetail> getByPrefix(String prefix) {
+	List <ContentsFileDetail> l = new ArrayList <ContentsFileDetail> ();
+	if (table == null) {
+	    for (int i = lowerBound(prefix); i < details.length
+		     && details[i].getName().startsWith(prefix); i++) {
+		l.add(details[i]);
+	    }
+	} else {
+	    byte[] b = prefix.getBytes(UTF8);
+	    for (int i = lowerBound(b); i < rows.length
+		     && table.nameStartsWith(rows[i], b); i++) {
+		l.add(new ContentsFileDetail(table, rows[i]));
+	    }
+	}
+	return l;
+    }
+
+    /**
+     * Return the entry for the given directory, if there is one, and
+     * all the entries below it, sorted by name.
+     *
+     * @param dir the top of the directory tree
+     *
+     * @return a List of matching entries
+     */
+    public List <ContentsFileDetail> getSubtree(String dir) {
+	while (dir.endsWith("/")) {
+	    dir = dir.substring(0, dir.length() - 1);
+	}
+	List <ContentsFileDetail> l = getByPrefix(dir + "/");
+	// the directory itself sorts before its contents
+	ContentsFileDetail top = getExact(dir);
+	if (top != null) {
+	    l.add(0, top);
+	}
+	return l;
+    }
+
+    private ContentsFileDetail getExact(String name) {
+	if (table == null) {
+	    int i = lowerBound(name);
+	    return (i < details.length && details[i].getName().equals(name))
+		? details[i] : null;
+	}
+	byte[] b = name.getBytes(UTF8);
+	int i = lowerBound(b);
+	return (i < rows.length && table.compareName(rows[i], b) == 0)
+	    ? new ContentsFileDetail(table, rows[i]) : null;
+    }
+
+    /*
+     * The index of the first name not less than the key.
+     */
+    private int lowerBound(String key) {
+	int lo = 0;
+	int hi = details.length;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (details[mid].getName().compareTo(key) < 0) {
+		lo = mid + 1;
+	    } else {
+		hi = mid;
+	    }
+	}
+	return lo;
+    }
+
+    private int lowerBound(byte[] key) {
+	int lo = 0;
+	int hi = rows.length;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (table.compareName(rows[mid], key) < 0) {
+		lo = mid + 1;
+	    } else {
+		hi = mid;
+	    }
+	}
+	return lo;
+    }
+}
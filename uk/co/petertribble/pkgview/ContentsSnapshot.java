@@ -0,0 +1,239 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Save and restore a parsed contents file as a binary snapshot, so
+ * that the contents file doesn't need to be parsed every time.
+ *
+ * A snapshot is only valid if the contents file still has the same
+ * size, modification time, and inode (file key) as when the snapshot
+ * was written, and the snapshot format version matches.
+ *
+ * The ContentsBloomFilter of path names is saved along with the table.
+ */
+public class ContentsSnapshot {
+
+    private static final String MAGIC = "pkgview contents snapshot";
+
+    /*
+     * Increment this whenever the layout of the snapshot changes.
+     */
+    private static final int VERSION = 3;
+
+    private File contentsf;
+    private File snapf;
+    private String key;
+    private ContentsBloomFilter filter;
+
+    /**
+     * Create a ContentsSnapshot for the given contents file, with the
+     * snapshot stored in the given cache directory.
+     *
+     * @param contents the name of the contents file
+     * @param cachedir the directory holding the snapshot
+     */
+    public ContentsSnapshot(String contents, File cachedir) {
+	this(contents, cachedir, fileKey(new File(contents)));
+    }
+
+    /**
+     * Create a ContentsSnapshot for the given contents file, as it was
+     * when described by the given key. A table read from the contents
+     * file should be saved under the key taken before it was read, so
+     * that if the file changes meanwhile, the snapshot isn't valid.
+     *
+     * @param contents the name of the contents file
+     * @param cachedir the directory holding the snapshot
+     * @param key the key of the contents file, from fileKey()
+     */
+    public ContentsSnapshot(String contents, File cachedir, String key) {
+	contentsf = new File(contents);
+	// allow for different contents files in alternate roots
+	snapf = new File(cachedir, "contents-"
+		+ Integer.toHexString(contentsf.getAbsolutePath().hashCode())
+		+ ".snap");
+	this.key = key;
+    }
+
+    /*
+     * Describe the contents file by its size, modification time, and
+     * inode, or null if we can't see it.
+     */
+    static String fileKey(File contentsf) {
+	try {
+	    BasicFileAttributes attrs = Files.readAttributes(
+		contentsf.toPath(), BasicFileAttributes.class);
+	    return contentsf.getAbsolutePath() + " " + attrs.size() + " "
+		+ attrs.lastModifiedTime().toMillis() + " " + attrs.fileKey();
+	} catch (IOException ioe) {
+	    return null;
+	}
+    }
+
+    /**
+     * Return whether there's a snapshot that matches the contents file,
+     * reading just the header of the snapshot.
+     *
+     * @return true if load() would succeed
+     */
+    public boolean isValid() {
+	if (key == null || !snapf.exists()) {
+	    return false;
+	}
+	try {
+	    DataInputStream dis = new DataInputStream(
+		new BufferedInputStream(new FileInputStream(snapf)));
+	    try {
+		return MAGIC.equals(readString(dis)) && dis.readInt() == VERSION
+		    && key.equals(readString(dis));
+	    } finally {
+		dis.close();
+	    }
+	} catch (IOException ioe) {
+	    return false;
+	}
+    }
+
+    /**
+     * Load the snapshot, if it exists and matches the contents file.
+     *
+     * @return the saved ContentsTable, or null if there isn't a valid
+     * snapshot
+     */
+    public ContentsTable load() {
+	if (key == null || !snapf.exists()) {
+	    return null;
+	}
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(snapf, "r");
+	    try {
+		FileChannel fc = raf.getChannel();
+		ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0,
+					fc.size());
+		if (!MAGIC.equals(readString(buf)) || buf.getInt() != VERSION
+			|| !key.equals(readString(buf))) {
+		    return null;
+		}
+		ContentsTable table = ContentsTable.read(buf);
+		filter = ContentsBloomFilter.read(buf);
+		return table;
+	    } finally {
+		raf.close();
+	    }
+	} catch (IOException ioe) {
+	    return null;
+	} catch (RuntimeException re) {
+	    // truncated or otherwise damaged
+	    return null;
+	}
+    }
+
+    /**
+     * Return the path filter saved with the snapshot.
+     *
+     * @return the ContentsBloomFilter read by the last successful call
+     * to load(), or null
+     */
+    public ContentsBloomFilter getFilter() {
+	return filter;
+    }
+
+    /**
+     * Save a ContentsTable as the snapshot for this contents file. Any
+     * errors are ignored, as we can always reparse the contents file.
+     * The snapshot is written to a temporary file and renamed into place,
+     * so concurrent readers never see a partial snapshot.
+     *
+     * @param table the ContentsTable to be saved
+     * @param filter the ContentsBloomFilter of the paths in the table
+     */
+    public void save(ContentsTable table, ContentsBloomFilter filter) {
+	if (key == null) {
+	    return;
+	}
+	File tmpf = null;
+	try {
+	    File dir = snapf.getParentFile();
+	    if (!dir.exists() && !dir.mkdirs()) {
+		return;
+	    }
+	    tmpf = File.createTempFile("contents", ".tmp", dir);
+	    DataOutputStream dos = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(tmpf), 65536));
+	    try {
+		writeString(dos, MAGIC);
+		dos.writeInt(VERSION);
+		writeString(dos, key);
+		table.write(dos);
+		filter.write(dos);
+	    } finally {
+		dos.close();
+	    }
+	    Files.move(tmpf.toPath(), snapf.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	    tmpf = null;
+	} catch (IOException ioe) {
+	} finally {
+	    if (tmpf != null) {
+		tmpf.delete();
+	    }
+	}
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException {
+	int len = buf.getInt();
+	if (len < 0 || len > buf.remaining()) {
+	    throw new IOException("bad snapshot");
+	}
+	byte[] b = new byte[len];
+	buf.get(b);
+	return new String(b, "UTF-8");
+    }
+
+    private static String readString(DataInputStream dis)
+		throws IOException {
+	int len = dis.readInt();
+	if (len < 0 || len > 65536) {
+	    throw new IOException("bad snapshot");
+	}
+	byte[] b = new byte[len];
+	dis.readFully(b);
+	return new String(b, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream dos, String s)
+		throws IOException {
+	byte[] b = s.getBytes("UTF-8");
+	dos.writeInt(b.length);
+	dos.write(b);
+    }
+}
@@ -0,0 +1,828 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A compact, column oriented, store for the entries in the contents file.
+ *
+ * Rather than an object per line, each entry is a row number, and the
+ * fields are held in parallel arrays of primitives. Owners, groups, and
+ * package names are replaced by ids into shared dictionaries, and the
+ * path names and link targets are held as UTF-8 in a single byte arena.
+ *
+ * A ContentsFileDetail can be created as a view of a row.
+ *
+ * Being just a set of arrays, a ContentsTable can be saved and loaded
+ * very quickly, see ContentsSnapshot.
+ */
+public class ContentsTable {
+
+    /**
+     * The value of a numeric field that isn't present for this file type.
+     */
+    public static final int ABSENT = -1;
+
+    /**
+     * The value of the mode field if the mode is given as ?.
+     */
+    public static final int UNKNOWN_MODE = -2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int REMOVED = -2;
+
+    private int count;
+    private byte[] ftypes;
+    private int[] modes;
+    private long[] sizes;
+    private long[] cksums;
+    private long[] modtimes;
+    private int[] owners;
+    private int[] groups;
+    private int[] nameOffsets;
+    private int[] nameLengths;
+    private int[] targetOffsets;
+    private int[] targetLengths;
+    // the packages of row i are pkgIds[pkgStarts[i]] to pkgIds[pkgStarts[i+1]]
+    private int[] pkgStarts;
+    private int[] pkgIds;
+    private int npkgids;
+
+    private byte[] arena;
+    private int arenaSize;
+
+    private Dictionary ownerDict;
+    private Dictionary groupDict;
+    private Dictionary pkgDict;
+
+    /*
+     * Open addressing hash of path name to row, empty slots are -1 and
+     * slots whose row has been removed are REMOVED.
+     */
+    private int[] index;
+
+    /**
+     * Create an empty ContentsTable.
+     */
+    public ContentsTable() {
+	this(65536);
+    }
+
+    /**
+     * Create an empty ContentsTable with room for the given number of rows.
+     *
+     * @param capacity the number of rows initially allocated
+     */
+    public ContentsTable(int capacity) {
+	capacity = Math.max(capacity, 16);
+	ftypes = new byte[capacity];
+	modes = new int[capacity];
+	sizes = new long[capacity];
+	cksums = new long[capacity];
+	modtimes = new long[capacity];
+	owners = new int[capacity];
+	groups = new int[capacity];
+	nameOffsets = new int[capacity];
+	nameLengths = new int[capacity];
+	targetOffsets = new int[capacity];
+	targetLengths = new int[capacity];
+	pkgStarts = new int[capacity + 1];
+	pkgIds = new int[capacity];
+	arena = new byte[capacity*32];
+	ownerDict = new Dictionary();
+	groupDict = new Dictionary();
+	pkgDict = new Dictionary();
+	index = new int[Integer.highestOneBit(capacity)*4];
+	Arrays.fill(index, -1);
+    }
+
+    /*
+     * Used when reading a saved table, which fills in all the fields.
+     */
+    private ContentsTable(ByteBuffer buf) {
+	count = buf.getInt();
+	npkgids = buf.getInt();
+	arenaSize = buf.getInt();
+	ftypes = new byte[count];
+	buf.get(ftypes);
+	modes = readInts(buf, count);
+	sizes = readLongs(buf, count);
+	cksums = readLongs(buf, count);
+	modtimes = readLongs(buf, count);
+	owners = readInts(buf, count);
+	groups = readInts(buf, count);
+	nameOffsets = readInts(buf, count);
+	nameLengths = readInts(buf, count);
+	targetOffsets = readInts(buf, count);
+	targetLengths = readInts(buf, count);
+	pkgStarts = readInts(buf, count + 1);
+	pkgIds = readInts(buf, npkgids);
+	arena = new byte[arenaSize];
+	buf.get(arena);
+	index = readInts(buf, buf.getInt());
+	ownerDict = Dictionary.read(buf);
+	groupDict = Dictionary.read(buf);
+	pkgDict = Dictionary.read(buf);
+    }
+
+    /*
+     * Used by copy().
+     */
+    private ContentsTable(ContentsTable t) {
+	count = t.count;
+	ftypes = t.ftypes.clone();
+	modes = t.modes.clone();
+	sizes = t.sizes.clone();
+	cksums = t.cksums.clone();
+	modtimes = t.modtimes.clone();
+	owners = t.owners.clone();
+	groups = t.groups.clone();
+	nameOffsets = t.nameOffsets.clone();
+	nameLengths = t.nameLengths.clone();
+	targetOffsets = t.targetOffsets.clone();
+	targetLengths = t.targetLengths.clone();
+	pkgStarts = t.pkgStarts.clone();
+	npkgids = t.npkgids;
+	pkgIds = t.pkgIds.clone();
+	arenaSize = t.arenaSize;
+	arena = t.arena.clone();
+	index = t.index.clone();
+	ownerDict = t.ownerDict.copy();
+	groupDict = t.groupDict.copy();
+	pkgDict = t.pkgDict.copy();
+    }
+
+    /**
+     * Return a copy of this table, which can be modified without
+     * affecting the original. The same rows in each hold the same
+     * entries.
+     *
+     * @return a copy of this ContentsTable
+     */
+    public synchronized ContentsTable copy() {
+	return new ContentsTable(this);
+    }
+
+    /**
+     * Read a ContentsTable previously saved by write().
+     *
+     * @param buf a ByteBuffer positioned at the start of the saved table
+     *
+     * @return the ContentsTable
+     */
+    public static ContentsTable read(ByteBuffer buf) {
+	return new ContentsTable(buf);
+    }
+
+    /**
+     * Save this ContentsTable, so it can be recreated by read().
+     *
+     * @param dos the stream to write the table to
+     *
+     * @throws IOException if the table couldn't be written
+     */
+    public void write(DataOutputStream dos) throws IOException {
+	dos.writeInt(count);
+	dos.writeInt(npkgids);
+	dos.writeInt(arenaSize);
+	dos.write(ftypes, 0, count);
+	writeInts(dos, modes, count);
+	writeLongs(dos, sizes, count);
+	writeLongs(dos, cksums, count);
+	writeLongs(dos, modtimes, count);
+	writeInts(dos, owners, count);
+	writeInts(dos, groups, count);
+	writeInts(dos, nameOffsets, count);
+	writeInts(dos, nameLengths, count);
+	writeInts(dos, targetOffsets, count);
+	writeInts(dos, targetLengths, count);
+	writeInts(dos, pkgStarts, count + 1);
+	writeInts(dos, pkgIds, npkgids);
+	dos.write(arena, 0, arenaSize);
+	dos.writeInt(index.length);
+	writeInts(dos, index, index.length);
+	ownerDict.write(dos);
+	groupDict.write(dos);
+	pkgDict.write(dos);
+    }
+
+    private static int[] readInts(ByteBuffer buf, int n) {
+	int[] a = new int[n];
+	buf.asIntBuffer().get(a);
+	buf.position(buf.position() + 4*n);
+	return a;
+    }
+
+    private static long[] readLongs(ByteBuffer buf, int n) {
+	long[] a = new long[n];
+	buf.asLongBuffer().get(a);
+	buf.position(buf.position() + 8*n);
+	return a;
+    }
+
+    private static void writeInts(DataOutputStream dos, int[] a, int n)
+		throws IOException {
+	for (int i = 0; i < n; i++) {
+	    dos.writeInt(a[i]);
+	}
+    }
+
+    private static void writeLongs(DataOutputStream dos, long[] a, int n)
+		throws IOException {
+	for (int i = 0; i < n; i++) {
+	    dos.writeLong(a[i]);
+	}
+    }
+
+    /**
+     * Add an entry to the table.
+     *
+     * @param cfd the entry to be added
+     *
+     * @return the row number of the new entry
+     */
+    public synchronized int add(ContentsFileDetail cfd) {
+	ensureRows(count + 1);
+	int row = count;
+	ftypes[row] = (byte) cfd.getType();
+	modes[row] = parseMode(cfd.getMode());
+	sizes[row] = cfd.getRawSize();
+	cksums[row] = cfd.getChecksum();
+	modtimes[row] = cfd.getModTime();
+	owners[row] = ownerDict.id(cfd.getOwner());
+	groups[row] = groupDict.id(cfd.getGroup());
+	byte[] b = cfd.getName().getBytes(UTF8);
+	nameOffsets[row] = addBytes(b, 0, b.length);
+	nameLengths[row] = b.length;
+	if (cfd.getTarget() == null) {
+	    targetOffsets[row] = ABSENT;
+	    targetLengths[row] = 0;
+	} else {
+	    byte[] bt = cfd.getTarget().getBytes(UTF8);
+	    targetOffsets[row] = addBytes(bt, 0, bt.length);
+	    targetLengths[row] = bt.length;
+	}
+	List <String> pkgnames = cfd.getPackageNames();
+	ensurePackageIds(pkgnames.size());
+	for (String s : pkgnames) {
+	    pkgIds[npkgids++] = pkgDict.id(s);
+	}
+	pkgStarts[row + 1] = npkgids;
+	count++;
+	putIndex(row);
+	return row;
+    }
+
+    /**
+     * Add the current line of a ContentsTokenizer to the table. If the
+     * line is plain ASCII, the names are copied straight from the bytes
+     * of the line without being decoded.
+     *
+     * @param t the ContentsTokenizer positioned on the line to be added
+     *
+     * @return the row number of the new entry
+     */
+    public synchronized int add(ContentsTokenizer t) {
+	if (!t.isAscii()) {
+	    // rare enough to go the long way round
+	    return add(new ContentsFileDetail(t));
+	}
+	ensureRows(count + 1);
+	int row = count;
+	byte[] b = t.getBytes();
+	ftypes[row] = (byte) t.getType();
+	modes[row] = t.getMode();
+	sizes[row] = t.getSize();
+	cksums[row] = t.getChecksum();
+	modtimes[row] = t.getModTime();
+	owners[row] = fieldId(ownerDict, t, t.ownerField());
+	groups[row] = fieldId(groupDict, t, t.groupField());
+	nameLengths[row] = t.nameEnd() - t.nameStart();
+	nameOffsets[row] = addBytes(b, t.nameStart(), nameLengths[row]);
+	if (t.targetStart() < 0) {
+	    targetOffsets[row] = ABSENT;
+	    targetLengths[row] = 0;
+	} else {
+	    targetLengths[row] = t.targetEnd() - t.targetStart();
+	    targetOffsets[row] = addBytes(b, t.targetStart(),
+					targetLengths[row]);
+	}
+	int n = t.numPackages();
+	ensurePackageIds(n);
+	for (int i = 0; i < n; i++) {
+	    pkgIds[npkgids++] = fieldId(pkgDict, t, t.packageField(i));
+	}
+	pkgStarts[row + 1] = npkgids;
+	count++;
+	putIndex(row);
+	return row;
+    }
+
+    private static int fieldId(Dictionary d, ContentsTokenizer t, int f) {
+	return t.present(f) ? d.id(t.getBytes(), t.fieldStart(f),
+				t.fieldEnd(f) - t.fieldStart(f)) : ABSENT;
+    }
+
+    private void ensurePackageIds(int n) {
+	if (npkgids + n > pkgIds.length) {
+	    pkgIds = Arrays.copyOf(pkgIds,
+			Math.max(pkgIds.length*3/2, npkgids + n));
+	}
+    }
+
+    /**
+     * Remove a row from the table. The row isn't reused, but it can no
+     * longer be found by name and is no longer live.
+     *
+     * @param row the row to remove
+     */
+    public synchronized void remove(int row) {
+	if (!isLive(row)) {
+	    return;
+	}
+	ftypes[row] = 0;
+	int mask = index.length - 1;
+	int slot = hash(arena, nameOffsets[row], nameLengths[row]) & mask;
+	while (index[slot] != -1) {
+	    if (index[slot] == row) {
+		index[slot] = REMOVED;
+		break;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+    }
+
+    /**
+     * Return whether the given row is in use, or has been removed.
+     *
+     * @param row the row to check
+     *
+     * @return true if the row has not been removed
+     */
+    public boolean isLive(int row) {
+	return ftypes[row] != 0;
+    }
+
+    /**
+     * Release any unused space once all the rows have been added.
+     */
+    public void trim() {
+	ftypes = Arrays.copyOf(ftypes, count);
+	modes = Arrays.copyOf(modes, count);
+	sizes = Arrays.copyOf(sizes, count);
+	cksums = Arrays.copyOf(cksums, count);
+	modtimes = Arrays.copyOf(modtimes, count);
+	owners = Arrays.copyOf(owners, count);
+	groups = Arrays.copyOf(groups, count);
+	nameOffsets = Arrays.copyOf(nameOffsets, count);
+	nameLengths = Arrays.copyOf(nameLengths, count);
+	targetOffsets = Arrays.copyOf(targetOffsets, count);
+	targetLengths = Arrays.copyOf(targetLengths, count);
+	pkgStarts = Arrays.copyOf(pkgStarts, count + 1);
+	pkgIds = Arrays.copyOf(pkgIds, npkgids);
+	arena = Arrays.copyOf(arena, arenaSize);
+    }
+
+    /**
+     * Return the number of rows in the table.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Return the row holding the given path name.
+     *
+     * @param name the path name to look up
+     *
+     * @return the row number, or -1 if the path isn't in the table
+     */
+    public synchronized int find(String name) {
+	byte[] b = name.getBytes(UTF8);
+	int mask = index.length - 1;
+	int slot = hash(b, 0, b.length) & mask;
+	while (index[slot] != -1) {
+	    int row = index[slot];
+	    if (row != REMOVED && nameEquals(row, b)) {
+		return row;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	return -1;
+    }
+
+    /**
+     * Return the row holding the given path name as a ContentsFileDetail.
+     *
+     * @param name the path name to look up
+     *
+     * @return a view of the matching row, or null if there isn't one
+     */
+    public ContentsFileDetail getFileDetail(String name) {
+	int row = find(name);
+	return (row < 0) ? null : new ContentsFileDetail(this, row);
+    }
+
+    char getType(int row) {
+	return (char) ftypes[row];
+    }
+
+    int getMode(int row) {
+	return (modes[row] < 0) ? modes[row] : modes[row] & 0xffffff;
+    }
+
+    String getModeString(int row) {
+	int m = modes[row];
+	if (m == ABSENT) {
+	    return null;
+	}
+	if (m == UNKNOWN_MODE) {
+	    return "?";
+	}
+	// pad back out to the number of digits we were given
+	String s = Integer.toOctalString(m & 0xffffff);
+	int width = m >>> 24;
+	while (s.length() < width) {
+	    s = "0" + s;
+	}
+	return s;
+    }
+
+    long getSize(int row) {
+	return sizes[row];
+    }
+
+    long getChecksum(int row) {
+	return cksums[row];
+    }
+
+    long getModTime(int row) {
+	return modtimes[row];
+    }
+
+    String getOwner(int row) {
+	return ownerDict.get(owners[row]);
+    }
+
+    String getGroup(int row) {
+	return groupDict.get(groups[row]);
+    }
+
+    String getName(int row) {
+	return new String(arena, nameOffsets[row], nameLengths[row], UTF8);
+    }
+
+    String getTarget(int row) {
+	return (targetOffsets[row] == ABSENT) ? null
+	    : new String(arena, targetOffsets[row], targetLengths[row], UTF8);
+    }
+
+    int numPackages(int row) {
+	return pkgStarts[row + 1] - pkgStarts[row];
+    }
+
+    int getPackageId(int row, int i) {
+	return pkgIds[pkgStarts[row] + i];
+    }
+
+    int numPackageIds() {
+	return pkgDict.size();
+    }
+
+    String getPackageName(int id) {
+	return pkgDict.get(id);
+    }
+
+    List <String> getPackageNames(int row) {
+	List <String> l = new ArrayList <String> (numPackages(row));
+	for (int i = pkgStarts[row]; i < pkgStarts[row + 1]; i++) {
+	    l.add(pkgDict.get(pkgIds[i]));
+	}
+	return l;
+    }
+
+    /**
+     * Return an estimate of the memory used by this table, in bytes,
+     * excluding the dictionaries.
+     *
+     * @return the approximate size of the arrays in this table
+     */
+    public long arraySize() {
+	return ftypes.length + 4L*modes.length + 8L*sizes.length
+	    + 8L*cksums.length + 8L*modtimes.length
+	    + 4L*owners.length + 4L*groups.length
+	    + 4L*nameOffsets.length + 4L*nameLengths.length
+	    + 4L*targetOffsets.length + 4L*targetLengths.length
+	    + 4L*pkgStarts.length + 4L*pkgIds.length + arena.length
+	    + 4L*index.length;
+    }
+
+    /*
+     * Add the name of every live row to a filter.
+     */
+    synchronized void addNamesTo(ContentsBloomFilter filter) {
+	for (int row = 0; row < count; row++) {
+	    if (isLive(row)) {
+		filter.add(arena, nameOffsets[row], nameLengths[row]);
+	    }
+	}
+    }
+
+    /*
+     * The rows that can be found by name, in no particular order.
+     */
+    synchronized int[] indexedRows() {
+	int[] rows = new int[count];
+	int n = 0;
+	for (int row : index) {
+	    if (row >= 0) {
+		rows[n++] = row;
+	    }
+	}
+	return Arrays.copyOf(rows, n);
+    }
+
+    /*
+     * Compare the names of two rows, byte by byte.
+     */
+    int compareNames(int row1, int row2) {
+	return compareBytes(arena, nameOffsets[row1], nameLengths[row1],
+			arena, nameOffsets[row2], nameLengths[row2]);
+    }
+
+    /*
+     * Compare the name of a row with the given UTF-8 bytes.
+     */
+    int compareName(int row, byte[] b) {
+	return compareBytes(arena, nameOffsets[row], nameLengths[row],
+			b, 0, b.length);
+    }
+
+    /*
+     * Return whether the name of a row starts with the given UTF-8 bytes.
+     */
+    boolean nameStartsWith(int row, byte[] b) {
+	if (nameLengths[row] < b.length) {
+	    return false;
+	}
+	int off = nameOffsets[row];
+	for (int i = 0; i < b.length; i++) {
+	    if (arena[off + i] != b[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /*
+     * Unsigned comparison, so that UTF-8 sorts by code point.
+     */
+    private static int compareBytes(byte[] b1, int off1, int len1,
+				byte[] b2, int off2, int len2) {
+	int n = Math.min(len1, len2);
+	for (int i = 0; i < n; i++) {
+	    int c = (b1[off1 + i] & 0xff) - (b2[off2 + i] & 0xff);
+	    if (c != 0) {
+		return c;
+	    }
+	}
+	return len1 - len2;
+    }
+
+    private boolean nameEquals(int row, byte[] b) {
+	if (nameLengths[row] != b.length) {
+	    return false;
+	}
+	int off = nameOffsets[row];
+	for (int i = 0; i < b.length; i++) {
+	    if (arena[off + i] != b[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /*
+     * Point the index entry for this name at the given row, replacing
+     * any earlier row of the same name.
+     */
+    private void putIndex(int row) {
+	if (count*2 > index.length) {
+	    rehash(index.length*2);
+	}
+	int mask = index.length - 1;
+	int slot = hash(arena, nameOffsets[row], nameLengths[row]) & mask;
+	while (index[slot] != -1) {
+	    if (index[slot] != REMOVED && compareNames(index[slot], row) == 0) {
+		break;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	index[slot] = row;
+    }
+
+    private void rehash(int newsize) {
+	int[] nindex = new int[newsize];
+	Arrays.fill(nindex, -1);
+	int mask = newsize - 1;
+	for (int row : index) {
+	    if (row >= 0) {
+		int slot = hash(arena, nameOffsets[row], nameLengths[row])
+		    & mask;
+		while (nindex[slot] != -1) {
+		    slot = (slot + 1) & mask;
+		}
+		nindex[slot] = row;
+	    }
+	}
+	index = nindex;
+    }
+
+    private static int hash(byte[] b, int off, int len) {
+	int h = 0;
+	for (int i = off; i < off + len; i++) {
+	    h = 31*h + b[i];
+	}
+	// spread the bits, as we only use the low ones
+	return h ^ (h >>> 16);
+    }
+
+    private int addBytes(byte[] b, int off, int len) {
+	if (arenaSize + len > arena.length) {
+	    arena = Arrays.copyOf(arena,
+			Math.max(arena.length*3/2, arenaSize + len));
+	}
+	System.arraycopy(b, off, arena, arenaSize, len);
+	arenaSize += len;
+	return arenaSize - len;
+    }
+
+    private void ensureRows(int n) {
+	if (n <= ftypes.length) {
+	    return;
+	}
+	int nsize = Math.max(n, ftypes.length*3/2);
+	ftypes = Arrays.copyOf(ftypes, nsize);
+	modes = Arrays.copyOf(modes, nsize);
+	sizes = Arrays.copyOf(sizes, nsize);
+	cksums = Arrays.copyOf(cksums, nsize);
+	modtimes = Arrays.copyOf(modtimes, nsize);
+	owners = Arrays.copyOf(owners, nsize);
+	groups = Arrays.copyOf(groups, nsize);
+	nameOffsets = Arrays.copyOf(nameOffsets, nsize);
+	nameLengths = Arrays.copyOf(nameLengths, nsize);
+	targetOffsets = Arrays.copyOf(targetOffsets, nsize);
+	targetLengths = Arrays.copyOf(targetLengths, nsize);
+	pkgStarts = Arrays.copyOf(pkgStarts, nsize + 1);
+    }
+
+    /*
+     * Modes are octal, and we keep the number of digits in the top byte
+     * so we can give back exactly what we were given. Anything absent is
+     * ABSENT, anything else we don't understand, normally ?, is
+     * UNKNOWN_MODE.
+     */
+    private static int parseMode(String s) {
+	if (s == null) {
+	    return ABSENT;
+	}
+	if (s.length() > 8) {
+	    return UNKNOWN_MODE;
+	}
+	try {
+	    return Integer.parseInt(s, 8) | (s.length() << 24);
+	} catch (NumberFormatException nfe) {
+	    return UNKNOWN_MODE;
+	}
+    }
+
+    /*
+     * Intern strings to small integer ids. A name can also be looked up
+     * by its UTF-8 bytes, which avoids creating a String if the name has
+     * been seen before.
+     */
+    static class Dictionary {
+	private Map <String, Integer> ids = new HashMap <String, Integer> ();
+	private List <String> names = new ArrayList <String> ();
+	private List <byte[]> keys = new ArrayList <byte[]> ();
+	// open addressing hash of the bytes, holding id + 1, 0 if empty
+	private int[] slots = new int[64];
+
+	int id(String s) {
+	    if (s == null) {
+		return ABSENT;
+	    }
+	    Integer i = ids.get(s);
+	    if (i == null) {
+		i = names.size();
+		names.add(s);
+		ids.put(s, i);
+		byte[] b = s.getBytes(UTF8);
+		keys.add(b);
+		if (names.size()*2 > slots.length) {
+		    rehash(slots.length*2);
+		} else {
+		    putSlot(slots, b, i);
+		}
+	    }
+	    return i;
+	}
+
+	int id(byte[] b, int off, int len) {
+	    int mask = slots.length - 1;
+	    int slot = hash(b, off, len) & mask;
+	    while (slots[slot] != 0) {
+		byte[] k = keys.get(slots[slot] - 1);
+		if (compareBytes(k, 0, k.length, b, off, len) == 0) {
+		    return slots[slot] - 1;
+		}
+		slot = (slot + 1) & mask;
+	    }
+	    return id(new String(b, off, len, UTF8));
+	}
+
+	private void rehash(int newsize) {
+	    slots = new int[newsize];
+	    for (int i = 0; i < keys.size(); i++) {
+		putSlot(slots, keys.get(i), i);
+	    }
+	}
+
+	private static void putSlot(int[] slots, byte[] b, int id) {
+	    int mask = slots.length - 1;
+	    int slot = hash(b, 0, b.length) & mask;
+	    while (slots[slot] != 0) {
+		slot = (slot + 1) & mask;
+	    }
+	    slots[slot] = id + 1;
+	}
+
+	String get(int i) {
+	    return (i == ABSENT) ? null : names.get(i);
+	}
+
+	Dictionary copy() {
+	    Dictionary d = new Dictionary();
+	    d.ids.putAll(ids);
+	    d.names.addAll(names);
+	    d.keys.addAll(keys);
+	    d.slots = slots.clone();
+	    return d;
+	}
+
+	int size() {
+	    return names.size();
+	}
+
+	void write(DataOutputStream dos) throws IOException {
+	    dos.writeInt(names.size());
+	    for (byte[] b : keys) {
+		dos.writeInt(b.length);
+		dos.write(b);
+	    }
+	}
+
+	static Dictionary read(ByteBuffer buf) {
+	    Dictionary d = new Dictionary();
+	    int n = buf.getInt();
+	    for (int i = 0; i < n; i++) {
+		byte[] b = new byte[buf.getInt()];
+		buf.get(b);
+		d.id(new String(b, UTF8));
+	    }
+	    return d;
+	}
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.nio.charset.Charset;
+
+/**
+ * Split the lines of the contents file into fields without creating a
+ * String per line or per token.
+ *
+ * The raw bytes are scanned once, recording where each field starts
+ * and ends, and the layout of the line is worked out from the file type
+ * as in contents(4). Only the fields that are asked for are decoded;
+ * the numeric fields are converted straight from the bytes, and the
+ * owner, group, mode, and package names are looked up in a dictionary
+ * so the same String is handed back every time.
+ *
+ * The class and device numbers are never decoded.
+ */
+public class ContentsTokenizer {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    /*
+     * What lines that aren't plain ASCII are decoded with. Anything else
+     * reading the contents file as text must use the same charset, so
+     * that the path names it sees match those in a ContentsTable.
+     */
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    private InputStream in;
+    private boolean eof;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    // the offset in the input of buf[0]
+    private long base;
+
+    // the current line
+    private byte[] line;
+    private long offset;
+    private int nfields;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private boolean ascii;
+    private char ftype;
+    private int nameEnd;
+    private int targetStart;
+    private int modeField;
+    private int ownerField;
+    private int groupField;
+    private int sizeField;
+    private int cksumField;
+    private int modtimeField;
+    private int pkgField;
+
+    private final ContentsTable.Dictionary names
+	= new ContentsTable.Dictionary();
+
+    /**
+     * Create a ContentsTokenizer to read lines from a stream. The stream
+     * is read in large blocks, so needs no buffering of its own.
+     *
+     * @param in the stream to read the contents file from
+     */
+    public ContentsTokenizer(InputStream in) {
+	this.in = in;
+	buf = new byte[1 << 20];
+    }
+
+    /**
+     * Create a ContentsTokenizer to read the lines held in part of an
+     * array.
+     *
+     * @param b the array holding the lines
+     * @param off the start of the first line
+     * @param len the number of bytes to read
+     */
+    public ContentsTokenizer(byte[] b, int off, int len) {
+	buf = b;
+	pos = off;
+	limit = off + len;
+	eof = true;
+    }
+
+    /**
+     * Move on to the next line, skipping any blank lines.
+     *
+     * @return true if there is another line, false at the end of the input
+     *
+     * @throws IOException if the input can't be read
+     */
+    public boolean next() throws IOException {
+	int scan = pos;
+	for (;;) {
+	    int nl = scan;
+	    while (nl < limit && buf[nl] != '\n') {
+		nl++;
+	    }
+	    if (nl < limit) {
+		int start = pos;
+		pos = nl + 1;
+		scan = pos;
+		if (tokenize(buf, start, nl - start)) {
+		    return true;
+		}
+	    } else if (eof) {
+		int start = pos;
+		pos = limit;
+		return (start < limit) && tokenize(buf, start, limit - start);
+	    } else {
+		// only look at the new data next time round
+		scan = limit - pos;
+		fill();
+	    }
+	}
+    }
+
+    /*
+     * Move any partial line to the front of the buffer, growing it if
+     * the line fills it, and read some more.
+     */
+    private void fill() throws IOException {
+	if (pos > 0) {
+	    System.arraycopy(buf, pos, buf, 0, limit - pos);
+	    limit -= pos;
+	    base += pos;
+	    pos = 0;
+	}
+	if (limit == buf.length) {
+	    buf = Arrays.copyOf(buf, buf.length*2);
+	}
+	int n = in.read(buf, limit, buf.length - limit);
+	if (n < 0) {
+	    eof = true;
+	} else {
+	    limit += n;
+	}
+    }
+
+    /**
+     * Split a single line into fields. Normally lines are obtained by
+     * calling next().
+     *
+     * @param b the array holding the line
+     * @param off the start of the line
+     * @param len the length of the line, excluding the newline
+     *
+     * @return false if the line is blank, true otherwise
+     */
+    public boolean tokenize(byte[] b, int off, int len) {
+	line = b;
+	offset = base + off;
+	int end = off + len;
+	if (end > off && b[end - 1] == '\r') {
+	    end--;
+	}
+	nfields = 0;
+	ascii = true;
+	int i = off;
+	while (i < end) {
+	    if (b[i] == ' ') {
+		i++;
+		continue;
+	    }
+	    if (nfields == starts.length) {
+		starts = Arrays.copyOf(starts, nfields*2);
+		ends = Arrays.copyOf(ends, nfields*2);
+	    }
+	    starts[nfields] = i;
+	    while (i < end && b[i] != ' ') {
+		if (b[i] < 0) {
+		    ascii = false;
+		}
+		i++;
+	    }
+	    ends[nfields++] = i;
+	}
+	if (nfields == 0) {
+	    return false;
+	}
+	layout();
+	return true;
+    }
+
+    /*
+     * Work out which field is which, from contents(4)
+     *
+     * ftype s: path=rpath s class package
+     * ftype l: path=rpath l class package
+     * ftype d: path d class mode owner group package(s)
+     * ftype b: path b class major minor mode owner group package
+     * ftype c: path c class major minor mode owner group package
+     * ftype f: path f class mode owner group size cksum modtime package
+     * ftype x: path x class mode owner group package
+     * ftype v: path v class mode owner group size cksum modtime package
+     * ftype e: path e class mode owner group size cksum modtime package
+     * ftype p: path p class mode owner group package
+     */
+    private void layout() {
+	ftype = (nfields > 1) ? (char) (line[starts[1]] & 0xff) : 0;
+	nameEnd = ends[0];
+	targetStart = -1;
+	modeField = -1;
+	ownerField = -1;
+	groupField = -1;
+	sizeField = -1;
+	cksumField = -1;
+	modtimeField = -1;
+	if (ftype == 'l' || ftype == 's') {
+	    // split the filename into name and link target
+	    for (int i = starts[0]; i < ends[0]; i++) {
+		if (line[i] == '=') {
+		    nameEnd = i;
+		    targetStart = i + 1;
+		    break;
+		}
+	    }
+	    pkgField = 3;
+	    return;
+	}
+	int f = (ftype == 'b' || ftype == 'c') ? 5 : 3;
+	modeField = f++;
+	ownerField = f++;
+	groupField = f++;
+	if (ftype == 'e' || ftype == 'f' || ftype == 'v') {
+	    sizeField = f;
+	    cksumField = f + 1;
+	    modtimeField = f + 2;
+	    f += 3;
+	}
+	pkgField = f;
+    }
+
+    /**
+     * Return the offset of the current line from the start of the input.
+     *
+     * @return the byte offset of the start of the current line
+     */
+    public long getOffset() {
+	return offset;
+    }
+
+    /**
+     * Return the single character file type of the current line.
+     *
+     * @return the file type, or 0 if the line has no type
+     */
+    public char getType() {
+	return ftype;
+    }
+
+    /**
+     * Return the path name of the current line.
+     *
+     * @return the path name
+     */
+    public String getName() {
+	return decode(starts[0], nameEnd);
+    }
+
+    /**
+     * Return the link target of the current line.
+     *
+     * @return the link target, or null if this isn't a link
+     */
+    public String getTarget() {
+	return (targetStart < 0) ? null : decode(targetStart, ends[0]);
+    }
+
+    /**
+     * Return the permissions of the current line as given.
+     *
+     * @return the mode, or null if there isn't one
+     */
+    public String getModeString() {
+	return lookup(modeField);
+    }
+
+    /**
+     * Return the owner of the current line.
+     *
+     * @return the owner, or null if there isn't one
+     */
+    public String getOwner() {
+	return lookup(ownerField);
+    }
+
+    /**
+     * Return the group of the current line.
+     *
+     * @return the group, or null if there isn't one
+     */
+    public String getGroup() {
+	return lookup(groupField);
+    }
+
+    /**
+     * Return the size of the current line.
+     *
+     * @return the size, or ContentsTable.ABSENT if there isn't one
+     */
+    public long getSize() {
+	return parseLong(sizeField);
+    }
+
+    /**
+     * Return the checksum of the current line.
+     *
+     * @return the checksum, or ContentsTable.ABSENT if there isn't one
+     */
+    public long getChecksum() {
+	return parseLong(cksumField);
+    }
+
+    /**
+     * Return the modification time of the current line.
+     *
+     * @return the modification time in seconds since the epoch, or
+     * ContentsTable.ABSENT if there isn't one
+     */
+    public long getModTime() {
+	return parseLong(modtimeField);
+    }
+
+    /**
+     * Return the permissions of the current line in the encoded form
+     * used by ContentsTable, with the number of digits in the top byte.
+     *
+     * @return the encoded mode, ContentsTable.ABSENT if there isn't one,
+     * or ContentsTable.UNKNOWN_MODE if it isn't an octal number
+     */
+    public int getMode() {
+	if (!present(modeField)) {
+	    return ContentsTable.ABSENT;
+	}
+	int s = starts[modeField];
+	int e = ends[modeField];
+	if (e - s > 8) {
+	    return ContentsTable.UNKNOWN_MODE;
+	}
+	int m = 0;
+	for (int i = s; i < e; i++) {
+	    int d = line[i] - '0';
+	    if (d < 0 || d > 7) {
+		return ContentsTable.UNKNOWN_MODE;
+	    }
+	    m = (m << 3) | d;
+	}
+	return m | ((e - s) << 24);
+    }
+
+    /**
+     * Return the number of packages the current line belongs to.
+     *
+     * @return the number of packages
+     */
+    public int numPackages() {
+	return Math.max(0, nfields - pkgField);
+    }
+
+    /**
+     * Return one of the packages the current line belongs to.
+     *
+     * @param i which package, counting from zero
+     *
+     * @return the package name
+     */
+    public String getPackage(int i) {
+	return lookup(pkgField + i);
+    }
+
+    /*
+     * Raw access for ContentsTable, which saves the bytes directly if
+     * the line is plain ASCII, as then they're already valid UTF-8.
+     */
+    boolean isAscii() {
+	return ascii;
+    }
+
+    byte[] getBytes() {
+	return line;
+    }
+
+    int nameStart() {
+	return starts[0];
+    }
+
+    int nameEnd() {
+	return nameEnd;
+    }
+
+    int targetStart() {
+	return targetStart;
+    }
+
+    int targetEnd() {
+	return ends[0];
+    }
+
+    int ownerField() {
+	return ownerField;
+    }
+
+    int groupField() {
+	return groupField;
+    }
+
+    int packageField(int i) {
+	return pkgField + i;
+    }
+
+    int fieldStart(int f) {
+	return starts[f];
+    }
+
+    int fieldEnd(int f) {
+	return ends[f];
+    }
+
+    boolean present(int f) {
+	return f >= 0 && f < nfields;
+    }
+
+    /*
+     * Plain ASCII is decoded directly, which is the same thing for
+     * any charset the contents file could reasonably be written in.
+     */
+    private String decode(int s, int e) {
+	return new String(line, s, e - s, ascii ? LATIN1 : CHARSET);
+    }
+
+    private String lookup(int f) {
+	if (!present(f)) {
+	    return null;
+	}
+	return ascii ? names.get(names.id(line, starts[f], ends[f] - starts[f]))
+	    : names.get(names.id(decode(starts[f], ends[f])));
+    }
+
+    private long parseLong(int f) {
+	if (!present(f)) {
+	    return ContentsTable.ABSENT;
+	}
+	int s = starts[f];
+	int e = ends[f];
+	// anything longer might overflow
+	if (e - s > 18) {
+	    return ContentsTable.ABSENT;
+	}
+	long l = 0;
+	for (int i = s; i < e; i++) {
+	    int d = line[i] - '0';
+	    if (d < 0 || d > 9) {
+		return ContentsTable.ABSENT;
+	    }
+	    l = l*10 + d;
+	}
+	return l;
+    }
+}
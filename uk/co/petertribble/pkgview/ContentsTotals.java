@@ -0,0 +1,125 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Accumulate the space used and number of entries for groups of packages,
+ * such as clusters, as the contents file is scanned. An entry is only
+ * counted once per group, even if several packages in the group own it.
+ *
+ * Only the totals are kept, so memory use is independent of the size
+ * of the contents file.
+ */
+public class ContentsTotals implements ContentsVisitor {
+
+    private Map <String, Integer> groups;
+    // package name to the groups that contain it
+    private Map <String, int[]> pkgGroups;
+    private long[] space;
+    private int[] entries;
+    // the last entry counted for each group, to avoid counting twice
+    private int[] lastSeen;
+    private int nentry;
+
+    /**
+     * Create an empty set of totals.
+     */
+    public ContentsTotals() {
+	groups = new HashMap <String, Integer> ();
+	pkgGroups = new HashMap <String, int[]> ();
+    }
+
+    /**
+     * Add a group, containing the given packages.
+     *
+     * @param name the name of the group
+     * @param pkgs the packages in the group
+     */
+    public void addGroup(String name, Collection <SolarisPackage> pkgs) {
+	int g = groups.size();
+	groups.put(name, g);
+	for (SolarisPackage pkg : pkgs) {
+	    int[] ga = pkgGroups.get(pkg.getName());
+	    if (ga == null) {
+		ga = new int[1];
+	    } else if (ga[ga.length - 1] == g) {
+		continue;
+	    } else {
+		ga = Arrays.copyOf(ga, ga.length + 1);
+	    }
+	    ga[ga.length - 1] = g;
+	    pkgGroups.put(pkg.getName(), ga);
+	}
+    }
+
+    @Override
+    public void visit(ContentsFileDetail cfd) {
+	if (space == null) {
+	    space = new long[groups.size()];
+	    entries = new int[groups.size()];
+	    lastSeen = new int[groups.size()];
+	}
+	nentry++;
+	for (String pkgname : cfd.getPackageNames()) {
+	    int[] ga = pkgGroups.get(pkgname);
+	    if (ga != null) {
+		for (int g : ga) {
+		    if (lastSeen[g] != nentry) {
+			lastSeen[g] = nentry;
+			entries[g]++;
+			if (cfd.isRegular()) {
+			    space[g] += cfd.sizeValue();
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Return the space used by regular files in the named group.
+     *
+     * @param name the name of the group
+     *
+     * @return the space used, in bytes
+     */
+    public long spaceUsed(String name) {
+	return (space == null) ? 0 : space[groups.get(name)];
+    }
+
+    /**
+     * Return the number of entries in the named group.
+     *
+     * @param name the name of the group
+     *
+     * @return the number of entries
+     */
+    public int numEntries(String name) {
+	return (entries == null) ? 0 : entries[groups.get(name)];
+    }
+}
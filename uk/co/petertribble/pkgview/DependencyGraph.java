@@ -0,0 +1,515 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The dependencies between a set of packages, held compactly so that
+ * questions about the whole system can be answered quickly.
+ *
+ * Every package is given a dense integer id, installed packages first
+ * in name order, followed by any packages that are named as a
+ * dependency but aren't installed. The edges are held in compressed
+ * sparse row form: the dependencies of package i are
+ * deps[depStart[i]] up to deps[depStart[i+1]], and likewise for the
+ * packages that depend on it and the packages it's incompatible with.
+ *
+ * Only prerequisite (P) dependencies form the graph, as with
+ * PkgList.createRevDependencies(). Incompatibilities are held as
+ * declared, and don't take part in closures or ordering.
+ *
+ * Strongly connected components are found once, on construction, with
+ * an iterative version of Tarjan's algorithm, so that deep dependency
+ * chains can't overflow the stack. They give both the cycles and an
+ * install order, in which every package comes after its dependencies
+ * unless they're in a cycle together.
+ */
+public class DependencyGraph {
+
+    private final String[] names;
+    private final int ninstalled;
+    private final Map <String, Integer> ids;
+
+    private final int[] depStart;
+    private final int[] deps;
+    private final int[] revStart;
+    private final int[] revs;
+    private final int[] incStart;
+    private final int[] incs;
+
+    // dependant closures already worked out, by id
+    private final BitSet[] dependantCache;
+
+    // the component of each package, and the packages in component order
+    private int[] component;
+    private int ncomponents;
+    private int[] order;
+    private int[] compStart;
+
+    /**
+     * Create a DependencyGraph of the given packages.
+     *
+     * @param pkgs the installed packages
+     */
+    public DependencyGraph(Collection <SolarisPackage> pkgs) {
+	// sorted names, so the ids don't depend on the order given
+	Set <String> installed = new TreeSet <String> ();
+	Set <String> missing = new TreeSet <String> ();
+	SolarisPackage[] byId = new SolarisPackage[pkgs.size()];
+	for (SolarisPackage pkg : pkgs) {
+	    installed.add(pkg.getName());
+	}
+	ninstalled = installed.size();
+	ids = new HashMap <String, Integer> (ninstalled*2);
+	for (String s : installed) {
+	    ids.put(s, ids.size());
+	}
+	for (SolarisPackage pkg : pkgs) {
+	    byId[ids.get(pkg.getName())] = pkg;
+	    for (String s : pkg.getDependencySet()) {
+		if (!ids.containsKey(s)) {
+		    missing.add(s);
+		}
+	    }
+	}
+	for (String s : missing) {
+	    ids.put(s, ids.size());
+	}
+	int n = ids.size();
+	names = new String[n];
+	for (Map.Entry <String, Integer> me : ids.entrySet()) {
+	    names[me.getValue()] = me.getKey();
+	}
+
+	// forward edges, in id order, with the count of each in-degree
+	depStart = new int[n + 1];
+	revStart = new int[n + 1];
+	incStart = new int[n + 1];
+	int[] depBuf = new int[64];
+	int[] incBuf = new int[16];
+	int ndeps = 0;
+	int nincs = 0;
+	for (int i = 0; i < ninstalled; i++) {
+	    depStart[i] = ndeps;
+	    incStart[i] = nincs;
+	    for (String s : byId[i].getDependencySet()) {
+		if (ndeps == depBuf.length) {
+		    depBuf = Arrays.copyOf(depBuf, ndeps*2);
+		}
+		int j = ids.get(s);
+		depBuf[ndeps++] = j;
+		revStart[j + 1]++;
+	    }
+	    for (String s : byId[i].getIncompatibleSet()) {
+		Integer j = ids.get(s);
+		if (j == null || j >= ninstalled) {
+		    // can't conflict with something that isn't there
+		    continue;
+		}
+		if (nincs == incBuf.length) {
+		    incBuf = Arrays.copyOf(incBuf, nincs*2);
+		}
+		incBuf[nincs++] = j;
+	    }
+	}
+	for (int i = ninstalled; i <= n; i++) {
+	    depStart[i] = ndeps;
+	    incStart[i] = nincs;
+	}
+	deps = Arrays.copyOf(depBuf, ndeps);
+	incs = Arrays.copyOf(incBuf, nincs);
+
+	// the reverse edges are the transpose, filled by counting sort
+	for (int i = 0; i < n; i++) {
+	    revStart[i + 1] += revStart[i];
+	}
+	revs = new int[ndeps];
+	int[] fill = Arrays.copyOf(revStart, n);
+	for (int i = 0; i < n; i++) {
+	    for (int k = depStart[i]; k < depStart[i + 1]; k++) {
+		revs[fill[deps[k]]++] = i;
+	    }
+	}
+	dependantCache = new BitSet[n];
+	findComponents();
+    }
+
+    /**
+     * Return the number of packages in the graph, including those that
+     * are depended on but not installed.
+     *
+     * @return the number of packages
+     */
+    public int size() {
+	return names.length;
+    }
+
+    /**
+     * Return the number of installed packages. These have the ids from
+     * zero up to one less than this.
+     *
+     * @return the number of installed packages
+     */
+    public int getInstalledCount() {
+	return ninstalled;
+    }
+
+    /**
+     * Return the id of the named package.
+     *
+     * @param name the name of a package
+     *
+     * @return the id of the package, or -1 if it isn't in the graph
+     */
+    public int getId(String name) {
+	Integer id = ids.get(name);
+	return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Return the name of a package.
+     *
+     * @param id the id of a package
+     *
+     * @return the name of the package
+     */
+    public String getName(int id) {
+	return names[id];
+    }
+
+    /**
+     * Return whether a package is installed, rather than just depended
+     * on by an installed package.
+     *
+     * @param id the id of a package
+     *
+     * @return true if the package is installed
+     */
+    public boolean isInstalled(int id) {
+	return id < ninstalled;
+    }
+
+    /**
+     * Return the packages a package depends on directly.
+     *
+     * @param id the id of a package
+     *
+     * @return the ids of its dependencies
+     */
+    public int[] getDependencies(int id) {
+	return Arrays.copyOfRange(deps, depStart[id], depStart[id + 1]);
+    }
+
+    /**
+     * Return the packages that depend directly on a package.
+     *
+     * @param id the id of a package
+     *
+     * @return the ids of its dependants
+     */
+    public int[] getDependants(int id) {
+	return Arrays.copyOfRange(revs, revStart[id], revStart[id + 1]);
+    }
+
+    /**
+     * Return the installed packages a package declares itself to be
+     * incompatible with.
+     *
+     * @param id the id of a package
+     *
+     * @return the ids of the packages it's incompatible with
+     */
+    public int[] getIncompatibles(int id) {
+	return Arrays.copyOfRange(incs, incStart[id], incStart[id + 1]);
+    }
+
+    /**
+     * Return every package a package depends on, directly or indirectly.
+     *
+     * @param id the id of a package
+     *
+     * @return the set of ids of its dependencies, not including the
+     * package itself unless it's in a cycle
+     */
+    public BitSet getDependencyClosure(int id) {
+	BitSet start = new BitSet(names.length);
+	start.set(id);
+	return closure(start, depStart, deps);
+    }
+
+    /**
+     * Return every package that depends on a package, directly or
+     * indirectly.
+     *
+     * @param id the id of a package
+     *
+     * @return the set of ids of its dependants, not including the
+     * package itself unless it's in a cycle
+     */
+    public BitSet getDependantClosure(int id) {
+	BitSet start = new BitSet(names.length);
+	start.set(id);
+	return closure(start, revStart, revs);
+    }
+
+    /**
+     * Return every package that depends, directly or indirectly, on any
+     * of a set of packages.
+     *
+     * @param start the set of ids of the packages
+     *
+     * @return the set of ids of their dependants, which only includes
+     * packages in the starting set if they depend on another one
+     */
+    public BitSet getDependantClosure(BitSet start) {
+	return closure(start, revStart, revs);
+    }
+
+    /**
+     * Return the packages that would lose a prerequisite, directly or
+     * indirectly, if a set of packages were removed. The dependants of
+     * each package are remembered, so that repeated or overlapping
+     * queries don't walk the graph again.
+     *
+     * @param removed the set of ids of the packages to be removed
+     *
+     * @return the set of ids of the affected packages, not including
+     * any of those removed
+     */
+    public BitSet getRemovalImpact(BitSet removed) {
+	BitSet affected = new BitSet(names.length);
+	for (int i = removed.nextSetBit(0); i >= 0;
+		 i = removed.nextSetBit(i + 1)) {
+	    affected.or(cachedDependants(i));
+	}
+	affected.andNot(removed);
+	return affected;
+    }
+
+    private synchronized BitSet cachedDependants(int id) {
+	if (dependantCache[id] == null) {
+	    dependantCache[id] = getDependantClosure(id);
+	}
+	return dependantCache[id];
+    }
+
+    /*
+     * Everything reachable from the starting set by following at least
+     * one edge.
+     */
+    private BitSet closure(BitSet start, int[] estart, int[] edges) {
+	BitSet seen = new BitSet(names.length);
+	int[] stack = new int[Math.max(16, start.cardinality())];
+	int sp = 0;
+	for (int i = start.nextSetBit(0); i >= 0; i = start.nextSetBit(i + 1)) {
+	    stack[sp++] = i;
+	}
+	while (sp > 0) {
+	    int i = stack[--sp];
+	    for (int k = estart[i]; k < estart[i + 1]; k++) {
+		int j = edges[k];
+		if (!seen.get(j)) {
+		    seen.set(j);
+		    if (sp == stack.length) {
+			stack = Arrays.copyOf(stack, sp*2);
+		    }
+		    stack[sp++] = j;
+		}
+	    }
+	}
+	return seen;
+    }
+
+    /*
+     * Tarjan's algorithm, with an explicit stack of the packages being
+     * visited and how far through their dependencies each has got. A
+     * component is complete once all its dependencies are, so the
+     * components come out dependencies first.
+     */
+    private void findComponents() {
+	int n = names.length;
+	component = new int[n];
+	order = new int[n];
+	compStart = new int[n + 1];
+	int[] index = new int[n];
+	int[] low = new int[n];
+	int[] edge = new int[n];
+	int[] call = new int[n];
+	int[] tstack = new int[n];
+	boolean[] onStack = new boolean[n];
+	Arrays.fill(index, -1);
+	int next = 0;
+	int tsp = 0;
+	int nordered = 0;
+	for (int root = 0; root < n; root++) {
+	    if (index[root] >= 0) {
+		continue;
+	    }
+	    int csp = 0;
+	    call[csp++] = root;
+	    index[root] = low[root] = next++;
+	    edge[root] = depStart[root];
+	    tstack[tsp++] = root;
+	    onStack[root] = true;
+	    while (csp > 0) {
+		int v = call[csp - 1];
+		if (edge[v] < depStart[v + 1]) {
+		    int w = deps[edge[v]++];
+		    if (index[w] < 0) {
+			index[w] = low[w] = next++;
+			edge[w] = depStart[w];
+			tstack[tsp++] = w;
+			onStack[w] = true;
+			call[csp++] = w;
+		    } else if (onStack[w]) {
+			low[v] = Math.min(low[v], index[w]);
+		    }
+		    continue;
+		}
+		csp--;
+		if (csp > 0) {
+		    int u = call[csp - 1];
+		    low[u] = Math.min(low[u], low[v]);
+		}
+		if (low[v] == index[v]) {
+		    compStart[ncomponents] = nordered;
+		    int w;
+		    do {
+			w = tstack[--tsp];
+			onStack[w] = false;
+			component[w] = ncomponents;
+			order[nordered++] = w;
+		    } while (w != v);
+		    ncomponents++;
+		}
+	    }
+	}
+	compStart[ncomponents] = nordered;
+	compStart = Arrays.copyOf(compStart, ncomponents + 1);
+    }
+
+    /**
+     * Return an order in which the packages could be installed, with
+     * every package after the packages it depends on, except where they
+     * depend on each other in a cycle.
+     *
+     * @return the ids of all the packages, in install order
+     */
+    public int[] getInstallOrder() {
+	return order.clone();
+    }
+
+    /**
+     * Return the strongly connected component a package is in. Packages
+     * are in the same component if each depends, directly or indirectly,
+     * on the other. Components are numbered in install order.
+     *
+     * @param id the id of a package
+     *
+     * @return the number of the component holding the package
+     */
+    public int getComponent(int id) {
+	return component[id];
+    }
+
+    /**
+     * Return the number of strongly connected components.
+     *
+     * @return the number of components
+     */
+    public int getComponentCount() {
+	return ncomponents;
+    }
+
+    /**
+     * Return the packages in a strongly connected component.
+     *
+     * @param c the number of the component
+     *
+     * @return the ids of the packages in the component
+     */
+    public int[] getComponentMembers(int c) {
+	return Arrays.copyOfRange(order, compStart[c], compStart[c + 1]);
+    }
+
+    /**
+     * Return whether a package is part of a dependency cycle, including
+     * a package that depends on itself.
+     *
+     * @param id the id of a package
+     *
+     * @return true if the package depends indirectly on itself
+     */
+    public boolean isInCycle(int id) {
+	int c = component[id];
+	if (compStart[c + 1] - compStart[c] > 1) {
+	    return true;
+	}
+	for (int k = depStart[id]; k < depStart[id + 1]; k++) {
+	    if (deps[k] == id) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Return the dependency cycles, as the strongly connected components
+     * with more than one package or a package that depends on itself.
+     *
+     * @return a List of the ids of the packages in each cycle
+     */
+    public List <int[]> getCycles() {
+	List <int[]> cycles = new ArrayList <int[]> ();
+	for (int c = 0; c < ncomponents; c++) {
+	    if (isInCycle(order[compStart[c]])) {
+		cycles.add(getComponentMembers(c));
+	    }
+	}
+	return cycles;
+    }
+
+    /**
+     * Return the names of a set of packages.
+     *
+     * @param idset the ids of the packages
+     *
+     * @return the sorted names of the packages
+     */
+    public Set <String> getNames(BitSet idset) {
+	Set <String> s = new TreeSet <String> ();
+	for (int i = idset.nextSetBit(0); i >= 0; i = idset.nextSetBit(i + 1)) {
+	    s.add(names[i]);
+	}
+	return s;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Calculate the SVR4 checksum of a file, as recorded in the contents
+ * file and printed by sum(1).
+ *
+ * The checksum is just the sum of the bytes, so it can be accumulated
+ * eight bytes at a time. Files are read through a large direct buffer,
+ * one per thread, so that several files can be summed at once on
+ * different threads without copying the data onto the heap.
+ */
+public final class FileChecksum {
+
+    private static final int BUFSIZE = 1024*1024;
+
+    private static final long LOW_BYTES = 0x00ff00ff00ff00ffL;
+
+    private static final ThreadLocal <ByteBuffer> BUFFERS
+	= new ThreadLocal <ByteBuffer> () {
+	    @Override
+	    protected ByteBuffer initialValue() {
+		return ByteBuffer.allocateDirect(BUFSIZE)
+		    .order(ByteOrder.nativeOrder());
+	    }
+	};
+
+    private FileChecksum() {
+    }
+
+    /**
+     * Calculate the checksum of a file.
+     *
+     * @param p the file to read
+     * @param limiter if not null, used to limit the rate of reading
+     *
+     * @return the SVR4 checksum of the file
+     *
+     * @throws IOException if the file couldn't be read
+     */
+    public static long sum(Path p, ThroughputLimiter limiter)
+		throws IOException {
+	ByteBuffer buf = BUFFERS.get();
+	long total = 0;
+	FileChannel fc = FileChannel.open(p, StandardOpenOption.READ);
+	try {
+	    buf.clear();
+	    while (fc.read(buf) >= 0) {
+		buf.flip();
+		if (limiter != null) {
+		    limiter.acquire(buf.remaining());
+		}
+		total += sumBytes(buf);
+		buf.clear();
+	    }
+	} finally {
+	    fc.close();
+	}
+	return fold(total);
+    }
+
+    /*
+     * The 32-bit sum of the bytes is folded down to 16 bits, as sum(1)
+     * does.
+     */
+    static long fold(long total) {
+	long s = total & 0xffffffffL;
+	long r = (s & 0xffff) + (s >>> 16);
+	return (r & 0xffff) + (r >>> 16);
+    }
+
+    /*
+     * Add up the bytes remaining in the buffer. Each long is split into
+     * four 16-bit lanes holding the sum of two bytes, which can't exceed
+     * 510, so 128 longs can be added before a lane might overflow.
+     */
+    static long sumBytes(ByteBuffer b) {
+	long total = 0;
+	while (b.remaining() >= 8) {
+	    int n = Math.min(b.remaining() >>> 3, 128);
+	    long lanes = 0;
+	    for (int i = 0; i < n; i++) {
+		long x = b.getLong();
+		lanes += (x & LOW_BYTES) + ((x >>> 8) & LOW_BYTES);
+	    }
+	    total += (lanes & 0xffff) + ((lanes >>> 16) & 0xffff)
+		+ ((lanes >>> 32) & 0xffff) + (lanes >>> 48);
+	}
+	while (b.hasRemaining()) {
+	    total += b.get() & 0xff;
+	}
+	return total;
+    }
+}
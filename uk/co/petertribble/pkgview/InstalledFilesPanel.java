@@ -82,4 +82,11 @@ public class InstalledFilesPanel extends JPanel {
     public void showDetailedView() {
 	pip.showDetailedView();
     }
+
+    /**
+     * Redisplay the current selection, as the package contents have changed.
+     */
+    public void redraw() {
+	pip.redraw();
+    }
 }
@@ -23,6 +23,9 @@
 package uk.co.petertribble.pkgview;
 
 import javax.swing.JTabbedPane;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import org.jdesktop.swingworker.SwingWorker;
 
 /**
@@ -63,14 +66,15 @@ public class InstalledSoftwarePanel extends JTabbedPane {
     }
 
     /*
-     * Parse the contents file in the background. ContentsParser is
-     * a singleton, so once we've done it here we can tell the other
-     * views to use it.
+     * Index the packages in the contents file in the background.
+     * ContentsParser is a singleton, so once we've done it here we can
+     * tell the package and cluster views to use it, as they only need
+     * the files in one package at a time. Then parse the whole file.
      */
     class ContentsWorker extends SwingWorker <String, Object> {
 	@Override
 	public String doInBackground() {
-	    ContentsParser.getInstance();
+	    ContentsParser.getLazyInstance();
 	    return "done";
 	}
 
@@ -80,8 +84,48 @@ public class InstalledSoftwarePanel extends JTabbedPane {
 	    if (ctoc.exists()) {
 		icp.showDetailedView();
 	    }
+	    (new ContentsLoader()).execute();
+	}
+    }
+
+    /*
+     * Parse the whole contents file in the background, which the
+     * filesystem view needs. Then keep watching the contents file, and
+     * redraw the views if it changes.
+     */
+    class ContentsLoader extends SwingWorker <String, Object> {
+	@Override
+	public String doInBackground() {
+	    ContentsParser.getInstance();
+	    return "done";
+	}
+
+	@Override
+	protected void done() {
 	    ifp.showDetailedView();
+	    ContentsParser cp = ContentsParser.getInstance();
+	    cp.addChangeListener(new ChangeListener() {
+		public void stateChanged(ChangeEvent e) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+			    redraw();
+			}
+		    });
+		}
+	    });
+	    cp.startWatching();
+	}
+    }
+
+    /*
+     * The package contents have changed, so update the views.
+     */
+    private void redraw() {
+	ipp.redraw();
+	if (ctoc.exists()) {
+	    icp.redraw();
 	}
+	ifp.redraw();
     }
 
     /*
@@ -22,23 +22,41 @@
 
 package uk.co.petertribble.pkgview;
 
+import java.io.IOException;
+import java.util.Set;
+import java.util.HashSet;
+
 /**
  * Display the sizes of install metaclusters.
  */
 public class MetaClusterSizes {
 
     /**
-     * Print out the disk space used by different MetaClusters.
+     * Print out the disk space used by different MetaClusters. The contents
+     * file is read in a single pass, keeping just the totals.
      *
      * @param args Command line arguments, ignored.
+     *
+     * @throws IOException if the contents file can't be read
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 	ClusterToc ctoc = new ClusterToc();
+	ContentsTotals totals = new ContentsTotals();
+	for (String s : ctoc.getMetaClusterNames()) {
+	    MetaCluster mc = ctoc.getMetaCluster(s);
+	    Set <SolarisPackage> pkgs = new HashSet <SolarisPackage> ();
+	    for (PackageCluster pc : mc.getClusters()) {
+		pkgs.addAll(pc.getPackages());
+	    }
+	    pkgs.addAll(mc.getPackages());
+	    totals.addGroup(s, pkgs);
+	}
+	ContentsParser.scan(totals);
 	for (String s : ctoc.getMetaClusterNames()) {
 	    MetaCluster mc = ctoc.getMetaCluster(s);
-	    ContentsPackage cc = new ContentsPackage(mc);
-	    System.out.println(cc.spaceUsed() + " | " + cc.numEntries()
-			+ " | " + s + " | " + mc.getDescription());
+	    System.out.println(totals.spaceUsed(s) + " | "
+			+ totals.numEntries(s) + " | " + s + " | "
+			+ mc.getDescription());
 	}
     }
 }
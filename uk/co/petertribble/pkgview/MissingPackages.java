@@ -22,49 +22,177 @@
 
 package uk.co.petertribble.pkgview;
 
-import java.util.Set;
-import java.util.TreeSet;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import uk.co.petertribble.jumble.JumbleFile;
 
 /**
  * MissingPackages - produce a report of packages that are claimed as being
  * required by other packages but aren't installed.
+ *
+ * Given a list of package roots, such as those of zones or of packages
+ * unpacked from a flash archive, the roots are analysed in parallel and
+ * each line of the report starts with the root it applies to. The roots
+ * often have the same versions of many packages, and each version's
+ * depend file is only read once, using SharedDependencies.
  */
 public class MissingPackages {
 
     public MissingPackages() {
 	PkgList plist = new PkgList();
-	/*
-	 * Go through installed packages and create a complete list
-	 * of their dependencies.
-	 */
-	Set <String> deps = new TreeSet <String> ();
-	for (SolarisPackage pkg : plist.getPackages()) {
-	    deps.addAll(pkg.getDependencySet());
-	}
-	/*
-	 * Remove the installed packages from the list, this should give
-	 * the set of unsatisfied dependencies.
-	 */
-	for (SolarisPackage pkg : plist.getPackages()) {
-	    deps.remove(pkg.getName());
+	// every package is looked at, so read them all in parallel
+	plist.loadAll();
+	System.out.print(report(plist, ""));
+    }
+
+    /**
+     * Produce the report for a list of packages. The unsatisfied
+     * dependencies are the packages that the DependencyGraph has to add
+     * because they're depended on but not installed.
+     *
+     * @param plist the installed packages
+     * @param prefix the start of each line
+     *
+     * @return the report, one line per missing package
+     */
+    public static String report(PkgList plist, String prefix) {
+	StringBuilder sb = new StringBuilder();
+	DependencyGraph g = plist.getDependencyGraph();
+	for (int i = g.getInstalledCount(); i < g.size(); i++) {
+	    sb.append(prefix).append("missing package ").append(g.getName(i))
+		.append(" needed by [");
+	    // dependants are in id order, which is name order
+	    int[] dependants = g.getDependants(i);
+	    for (int j = 0; j < dependants.length; j++) {
+		if (j > 0) {
+		    sb.append(", ");
+		}
+		sb.append(g.getName(dependants[j]));
+	    }
+	    sb.append("]\n");
 	}
-	/*
-	 * Map the reverse dependencies.
-	 */
-	plist.createRevDependencies();
+	return sb.toString();
+    }
 
-	for (String s : deps) {
-	    System.out.print("missing package " + s);
-	    System.out.println(" needed by " + plist.getDependantSet(s));
+    /*
+     * Analyse each package root on a pool of threads, printing the
+     * reports in the order the roots were given.
+     */
+    private static void batch(List <String> roots, int nthreads,
+		boolean verbose) {
+	long t0 = System.nanoTime();
+	final SharedDependencies shared = new SharedDependencies();
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	List <Future <String>> futures = new ArrayList <Future <String>> ();
+	for (final String root : roots) {
+	    futures.add(pool.submit(new Callable <String> () {
+		public String call() {
+		    if (!new File(root).isDirectory()) {
+			return null;
+		    }
+		    PkgList plist = new PkgList(root, false);
+		    for (SolarisPackage pkg : plist.getPackages()) {
+			shared.load(pkg);
+		    }
+		    return report(plist, root + ": ");
+		}
+	    }));
+	}
+	pool.shutdown();
+	for (int i = 0; i < roots.size(); i++) {
+	    try {
+		String s = futures.get(i).get();
+		if (s == null) {
+		    System.err.println("Cannot read package root "
+				+ roots.get(i));
+		} else {
+		    System.out.print(s);
+		}
+	    } catch (InterruptedException ie) {
+		pool.shutdownNow();
+		return;
+	    } catch (ExecutionException ee) {
+		System.err.println("Failed to analyse " + roots.get(i)
+				+ ": " + ee.getCause());
+	    }
+	}
+	System.out.flush();
+	if (verbose) {
+	    System.err.println("Analysed " + roots.size() + " package roots in "
+			+ (System.nanoTime() - t0)/1000000 + "ms, read "
+			+ shared.getParsedCount() + " depend files, shared "
+			+ shared.getSharedCount());
 	}
     }
 
+    private static void usage() {
+	System.err.println("Usage: missingpackages [-v] [-j threads] "
+			+ "[-f file] [package_root ...]");
+	System.exit(1);
+    }
+
     /**
      * Run the application.
      *
-     * @param args Command line arguments, ignored
+     * @param args Command line arguments: optionally -v to report
+     * progress, -j and a number of threads, -f and a file listing
+     * package roots one per line, and package roots. With no package
+     * roots, /var/sadm/pkg is analysed.
      */
     public static void main(String args[]) {
-	new MissingPackages();
+	List <String> roots = new ArrayList <String> ();
+	int nthreads = Math.max(4,
+			2*Runtime.getRuntime().availableProcessors());
+	boolean verbose = false;
+	// whether the package roots were listed in a file
+	boolean listed = false;
+	int i = 0;
+	for (; i < args.length && args[i].startsWith("-"); i++) {
+	    if ("-v".equals(args[i])) {
+		verbose = true;
+	    } else if ("-j".equals(args[i]) && i + 1 < args.length) {
+		try {
+		    nthreads = Integer.parseInt(args[++i]);
+		} catch (NumberFormatException nfe) {
+		    usage();
+		}
+		if (nthreads < 1) {
+		    usage();
+		}
+	    } else if ("-f".equals(args[i]) && i + 1 < args.length) {
+		File f = new File(args[++i]);
+		listed = true;
+		if (!f.isFile() || !f.canRead()) {
+		    System.err.println("Cannot read " + f);
+		    System.exit(1);
+		}
+		for (String s : JumbleFile.getLines(f)) {
+		    if (s.trim().length() > 0) {
+			roots.add(s.trim());
+		    }
+		}
+	    } else {
+		usage();
+	    }
+	}
+	for (; i < args.length; i++) {
+	    roots.add(args[i]);
+	}
+	if (listed && roots.isEmpty()) {
+	    // don't fall back to the local system
+	    System.err.println("No package roots listed");
+	    System.exit(1);
+	}
+	if (roots.isEmpty()) {
+	    new MissingPackages();
+	} else {
+	    batch(roots, nthreads, verbose);
+	}
     }
 }
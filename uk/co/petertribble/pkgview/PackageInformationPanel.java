@@ -49,6 +49,10 @@ public class PackageInformationPanel extends JTabbedPane {
     private PkgList plist;
     private ClusterToc ctoc;
     private ContentsParser cp;
+    // whatever is currently being shown, so it can be redrawn
+    private SolarisPackage curpkg;
+    private PackageCluster curcluster;
+    private File curfile;
 
     /**
      * Create a default PackageInformationPanel showing the default tabs.
@@ -83,6 +87,7 @@ public class PackageInformationPanel extends JTabbedPane {
 
     // this is really a metacluster or "Solaris"
     public void setClusterInfo(String s) {
+	setCurrent(null, null, null);
 	MetaCluster mc = ctoc.getMetaCluster(s);
 	if (mc == null) {
 	    infoOnly(s);
@@ -101,6 +106,7 @@ public class PackageInformationPanel extends JTabbedPane {
     }
 
     public void showPkg(SolarisPackage pkg) {
+	setCurrent(pkg, null, null);
 	if (pkg.exists()) {
 	    setInfoText(PkgUtils.infoTable(pkg),
 		    PkgUtils.dependencyTable(pkg, plist, showdsp),
@@ -121,6 +127,7 @@ public class PackageInformationPanel extends JTabbedPane {
     }
 
     public void showCluster(PackageCluster pc) {
+	setCurrent(null, pc, null);
 	StringBuilder sb = new StringBuilder();
 	PkgUtils.headRow(sb, "Cluster Name");
 	PkgUtils.addRow(sb, pc.getName());
@@ -164,6 +171,7 @@ public class PackageInformationPanel extends JTabbedPane {
     }
 
     public void showFile(File f) {
+	setCurrent(null, null, f);
 	if (cp == null) {
 	    infoOnly("Package information not available.");
 	} else {
@@ -288,13 +296,34 @@ public class PackageInformationPanel extends JTabbedPane {
      * Cause the detailed view of package contents to be shown.
      */
     public void showDetailedView() {
-	cp = ContentsParser.getInstance();
+	cp = ContentsParser.getLazyInstance();
+    }
+
+    /**
+     * Show the current package, cluster, or file again, as the package
+     * contents may have changed.
+     */
+    public void redraw() {
+	if (curpkg != null) {
+	    showPkg(curpkg);
+	} else if (curcluster != null) {
+	    showCluster(curcluster);
+	} else if (curfile != null) {
+	    showFile(curfile);
+	}
+    }
+
+    private void setCurrent(SolarisPackage pkg, PackageCluster pc, File f) {
+	curpkg = pkg;
+	curcluster = pc;
+	curfile = f;
     }
 
     /**
      * Reset the info panel to a blank state.
      */
     public void reset() {
+	setCurrent(null, null, null);
 	setSelectedIndex(0);
 	infoOnly("");
 	if (showfiles) {
@@ -110,6 +110,13 @@ public class PackagePanel extends JPanel {
 	pip.showDetailedView();
     }
 
+    /**
+     * Redisplay the current selection, as the package contents have changed.
+     */
+    public void redraw() {
+	pip.redraw();
+    }
+
     public void setMetaCluster(String metacluster) {
 	MetaCluster mcluster = ctoc.getMetaCluster(metacluster);
 	if ((profile != null) && (mcluster != null)) {
@@ -22,26 +22,34 @@
 
 package uk.co.petertribble.pkgview;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
 /**
  * Print out the sizes of all the packages.
  */
 public class PackageSizes {
 
     /**
-     * Prints out the installed sizes of all packages.
+     * Prints out the installed sizes of all packages. The contents file
+     * is read in a single pass, keeping just the totals.
      *
      * @param args Command line arguments, unused
+     *
+     * @throws IOException if the contents file can't be read
      */
-    public static void main(String[] args) {
-	ContentsParser cp = ContentsParser.getInstance();
-	for (SolarisPackage pkg :  new PkgList().getPackages()) {
-	    ContentsPackage cc = cp.getPackage(pkg.getName());
-	    if (cc == null) {
-		System.out.println("0 | 0 | " + pkg.getName());
-	    } else {
-		System.out.println(cc.spaceUsed() + " | " + cc.numEntries()
-				+ " | " + pkg.getName());
-	    }
+    public static void main(String[] args) throws IOException {
+	Set <SolarisPackage> pkgs = new PkgList().getPackages();
+	ContentsTotals totals = new ContentsTotals();
+	for (SolarisPackage pkg : pkgs) {
+	    totals.addGroup(pkg.getName(), Collections.singleton(pkg));
+	}
+	ContentsParser.scan(totals);
+	for (SolarisPackage pkg : pkgs) {
+	    System.out.println(totals.spaceUsed(pkg.getName()) + " | "
+			+ totals.numEntries(pkg.getName())
+			+ " | " + pkg.getName());
 	}
     }
 }
@@ -0,0 +1,337 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The attributes of a path on disk, as needed to check it against the
+ * contents file, obtained with a single stat that doesn't follow
+ * symlinks.
+ *
+ * Where the JVM supports the unix attribute view, as it does on Solaris,
+ * that's used as it gives the full mode, including the setuid, setgid,
+ * and sticky bits, and the numeric uid and gid. The numeric ids are
+ * translated to names through a cache, which saves looking up the names
+ * for every file. Otherwise the standard PosixFileAttributes are used,
+ * which only show the rwx permission bits, and don't give the device,
+ * inode, or change time.
+ */
+public class PathStat {
+
+    private static final String UNIX_ATTRS
+	= "unix:size,lastModifiedTime,ctime,dev,ino,uid,gid,mode";
+
+    private static volatile boolean unixView = true;
+
+    private static final Map <Integer, String> ownerNames
+	= new ConcurrentHashMap <Integer, String> ();
+    private static final Map <Integer, String> groupNames
+	= new ConcurrentHashMap <Integer, String> ();
+
+    // the file type bits of the unix mode
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFREG = 0100000;
+    private static final int S_IFDIR = 0040000;
+    private static final int S_IFLNK = 0120000;
+    private static final int S_IFBLK = 0060000;
+    private static final int S_IFCHR = 0020000;
+    private static final int S_IFIFO = 0010000;
+
+    // the file type, from S_IFMT, or 0 if it's not one we can tell
+    private int ftype;
+    private boolean other;
+    private long size;
+    private long modtime;
+    private long ctime;
+    private long dev;
+    private long ino = -1;
+    private int mode;
+    private int modeMask;
+    private String owner;
+    private String group;
+
+    private PathStat() {
+    }
+
+    /**
+     * Stat the given path, without following symlinks.
+     *
+     * @param p the path to stat
+     *
+     * @return the attributes of the path
+     *
+     * @throws IOException if the path doesn't exist or can't be read
+     */
+    public static PathStat stat(Path p) throws IOException {
+	if (unixView) {
+	    try {
+		return unixStat(p);
+	    } catch (UnsupportedOperationException uoe) {
+		unixView = false;
+	    } catch (IllegalArgumentException iae) {
+		unixView = false;
+	    }
+	}
+	return posixStat(p);
+    }
+
+    private static PathStat unixStat(Path p) throws IOException {
+	Map <String, Object> attrs = Files.readAttributes(p, UNIX_ATTRS,
+						LinkOption.NOFOLLOW_LINKS);
+	PathStat ps = new PathStat();
+	int m = (Integer) attrs.get("mode");
+	ps.ftype = m & S_IFMT;
+	ps.size = (Long) attrs.get("size");
+	ps.modtime = ((FileTime) attrs.get("lastModifiedTime"))
+	    .to(TimeUnit.SECONDS);
+	ps.ctime = ((FileTime) attrs.get("ctime")).to(TimeUnit.NANOSECONDS);
+	ps.dev = (Long) attrs.get("dev");
+	ps.ino = (Long) attrs.get("ino");
+	ps.mode = m & 07777;
+	ps.modeMask = 07777;
+	ps.owner = ownerName(p, (Integer) attrs.get("uid"));
+	ps.group = groupName(p, (Integer) attrs.get("gid"));
+	return ps;
+    }
+
+    private static PathStat posixStat(Path p) throws IOException {
+	PosixFileAttributes attrs = Files.readAttributes(p,
+				PosixFileAttributes.class,
+				LinkOption.NOFOLLOW_LINKS);
+	PathStat ps = new PathStat();
+	if (attrs.isRegularFile()) {
+	    ps.ftype = S_IFREG;
+	} else if (attrs.isDirectory()) {
+	    ps.ftype = S_IFDIR;
+	} else if (attrs.isSymbolicLink()) {
+	    ps.ftype = S_IFLNK;
+	} else {
+	    // a device, pipe, or socket, but we can't tell which
+	    ps.other = attrs.isOther();
+	}
+	ps.size = attrs.size();
+	ps.modtime = attrs.lastModifiedTime().to(TimeUnit.SECONDS);
+	ps.mode = permissionBits(attrs.permissions());
+	ps.modeMask = 0777;
+	ps.owner = attrs.owner().getName();
+	ps.group = attrs.group().getName();
+	return ps;
+    }
+
+    /*
+     * Only the first file we see with a given uid or gid has its owner
+     * or group looked up by name.
+     */
+    private static String ownerName(Path p, int uid) throws IOException {
+	String s = ownerNames.get(uid);
+	if (s == null) {
+	    s = Files.getOwner(p, LinkOption.NOFOLLOW_LINKS).getName();
+	    ownerNames.put(uid, s);
+	}
+	return s;
+    }
+
+    private static String groupName(Path p, int gid) throws IOException {
+	String s = groupNames.get(gid);
+	if (s == null) {
+	    s = ((GroupPrincipal) Files.getAttribute(p, "posix:group",
+				LinkOption.NOFOLLOW_LINKS)).getName();
+	    groupNames.put(gid, s);
+	}
+	return s;
+    }
+
+    /*
+     * PosixFilePermission is declared in the order owner read, write,
+     * execute, group read, ..., others execute.
+     */
+    private static int permissionBits(Set <PosixFilePermission> perms) {
+	int m = 0;
+	for (PosixFilePermission p : perms) {
+	    m |= 0400 >> p.ordinal();
+	}
+	return m;
+    }
+
+    /**
+     * Return whether the path is a regular file.
+     *
+     * @return true if the path is a regular file
+     */
+    public boolean isRegularFile() {
+	return ftype == S_IFREG;
+    }
+
+    /**
+     * Return whether the path is a directory.
+     *
+     * @return true if the path is a directory
+     */
+    public boolean isDirectory() {
+	return ftype == S_IFDIR;
+    }
+
+    /**
+     * Return whether the path is a symbolic link.
+     *
+     * @return true if the path is a symbolic link
+     */
+    public boolean isSymbolicLink() {
+	return ftype == S_IFLNK;
+    }
+
+    /**
+     * Return whether the path is a block device. Without the unix view,
+     * devices and pipes can't be told apart, and any of them counts.
+     *
+     * @return true if the path is, or may be, a block device
+     */
+    public boolean isBlockDevice() {
+	return ftype == S_IFBLK || other;
+    }
+
+    /**
+     * Return whether the path is a character device. Without the unix
+     * view, devices and pipes can't be told apart, and any of them
+     * counts.
+     *
+     * @return true if the path is, or may be, a character device
+     */
+    public boolean isCharacterDevice() {
+	return ftype == S_IFCHR || other;
+    }
+
+    /**
+     * Return whether the path is a named pipe. Without the unix view,
+     * devices and pipes can't be told apart, and any of them counts.
+     *
+     * @return true if the path is, or may be, a named pipe
+     */
+    public boolean isPipe() {
+	return ftype == S_IFIFO || other;
+    }
+
+    /**
+     * Return the size of the path.
+     *
+     * @return the size in bytes
+     */
+    public long size() {
+	return size;
+    }
+
+    /**
+     * Return the modification time of the path.
+     *
+     * @return the modification time, in seconds since the epoch
+     */
+    public long modTime() {
+	return modtime;
+    }
+
+    /**
+     * Return whether the device, inode, and change time are known.
+     *
+     * @return true if the path can be identified by its device and inode
+     */
+    public boolean hasIdentity() {
+	return ino >= 0;
+    }
+
+    /**
+     * Return the device holding the path.
+     *
+     * @return the device number, if hasIdentity() is true
+     */
+    public long device() {
+	return dev;
+    }
+
+    /**
+     * Return the inode number of the path.
+     *
+     * @return the inode number, or -1 if hasIdentity() is false
+     */
+    public long inode() {
+	return ino;
+    }
+
+    /**
+     * Return the time the attributes of the path last changed.
+     *
+     * @return the change time in nanoseconds since the epoch, if
+     * hasIdentity() is true
+     */
+    public long changeTime() {
+	return ctime;
+    }
+
+    /**
+     * Return the permissions of the path.
+     *
+     * @return the permission bits of the mode, as limited by getModeMask()
+     */
+    public int getMode() {
+	return mode;
+    }
+
+    /**
+     * Return which bits of the mode are known, 07777 if the setuid,
+     * setgid, and sticky bits are available, otherwise 0777.
+     *
+     * @return the mask of valid bits in getMode()
+     */
+    public int getModeMask() {
+	return modeMask;
+    }
+
+    /**
+     * Return the name of the owner of the path.
+     *
+     * @return the owner name
+     */
+    public String getOwner() {
+	return owner;
+    }
+
+    /**
+     * Return the name of the group of the path.
+     *
+     * @return the group name
+     */
+    public String getGroup() {
+	return group;
+    }
+}
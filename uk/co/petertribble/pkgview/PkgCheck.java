@@ -23,11 +23,86 @@
 package uk.co.petertribble.pkgview;
 
 import java.io.File;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * PkgCheck - check that what should be installed actually is.
+ *
+ * Entries are checked concurrently on a pool of worker threads, the
+ * number being set with -j. The output for each entry is collected and
+ * printed in order, packages in the order given (or alphabetically with
+ * -a) and the entries within each package sorted by path name, so that
+ * the output is the same from one run to the next. Only a limited number
+ * of results are held waiting to be printed. An entry that belongs to
+ * more than one package is only checked once, and the result kept until
+ * it has been repeated for each of those packages.
+ *
+ * With -D, all the entries to be checked are gathered first, and then
+ * checked a directory at a time in the order chosen by CheckPlanner,
+ * each directory being listed to find the entries that are missing.
+ * Everything is held until the check is complete. On local filesystems
+ * this has been measured to be slower than checking entries in package
+ * order, so isn't the default, but it may help on filesystems where
+ * walking the tree in order matters more.
+ *
+ * Each entry is checked with a single stat of the path, which gives the
+ * type, size, modification time, owner, group, and permissions to be
+ * compared with the contents file. Symbolic links also have their
+ * target read, and hard links are compared with their target by inode.
+ * Devices and named pipes have their type checked, but not their device
+ * numbers, which the contents file parser doesn't keep.
+ *
+ * With -c, regular files that aren't editable also have their checksum
+ * calculated and compared, which catches files that have been changed
+ * without changing their size or timestamp. That means reading every
+ * file, so the rate can be limited with -b, for example -b 20M for 20
+ * megabytes a second across all the worker threads.
+ *
+ * With -J, the results are recorded in a journal, see CheckJournal, and
+ * on later runs paths that haven't changed since they were last checked
+ * are skipped. Only new drift is reported; drift that was reported
+ * before and hasn't changed is only mentioned with -v.
+ *
+ * To run a check on a busy system, -r limits the number of stats and
+ * directory listings a second, and -L gives a latency in milliseconds
+ * above which the filesystem is taken to be busy and the check backs
+ * off, see CheckThrottle. With -R, progress is saved to a checkpoint
+ * file, and if the check is interrupted, running it again with the
+ * same arguments carries on from where it got to, see CheckCheckpoint,
+ * unless the contents file has changed meanwhile. The checkpoint can't
+ * be used with -D.
+ *
+ * With -s, only a random sample of the entries is checked, either a
+ * number of them or, with -s 5% for example, a percentage. The sample
+ * may be stratified by package or by file type with -S. The entries in
+ * the sample are reported as usual, followed by an estimate of the
+ * drift rate across all the entries, see CheckSampler.
+ *
+ * With -o jsonl or -o tsv, the results are written as records giving
+ * the level, kind of check, package, path, and the expected and actual
+ * values, followed by a summary, for other tools to read. See
+ * CheckOutput.
  */
 public class PkgCheck {
 
@@ -38,8 +113,45 @@ public class PkgCheck {
     private boolean dopaths;
     private boolean partpaths;
     private boolean allpkgs;
+    private boolean checksums;
+    private File journalFile;
+    private CheckJournal journal;
+    private ThroughputLimiter limiter;
+    private long opsRate;
+    private long latency;
+    private CheckThrottle throttle;
+    private File checkpointFile;
+    private CheckCheckpoint checkpoint;
+    private CheckSampler sampler;
+    private String stratify;
+    private boolean bydir;
+    // with a sample, the entries it's chosen from
+    private List <Report> candidates = new ArrayList <Report> ();
+    private int format = CheckOutput.TEXT;
+    private int nworkers = Runtime.getRuntime().availableProcessors();
 
     private ContentsParser cp;
+    private ExecutorService pool;
+    private CheckOutput results;
+    // results not yet printed, in the order they are to be printed
+    private LinkedList <Future <Report>> pending
+	= new LinkedList <Future <Report>> ();
+    // how many results have been queued, and how many printed
+    private int queued;
+    private int printed;
+    // the packages being checked, and the first check of each entry
+    // shared between them, until the last of them has been queued
+    private Set <String> checked = new HashSet <String> ();
+    private Map <ContentsFileDetail, SharedCheck> shared
+	= new HashMap <ContentsFileDetail, SharedCheck> ();
+    private long entries;
+    private long drift;
+    private boolean complete = true;
+    private boolean writeFailed;
+    // with a sample or -D, the output held until the check is done
+    private List <Report> output = new ArrayList <Report> ();
+    // with -D, the entries to be checked, with the report for each
+    private CheckPlanner <Report> planner = new CheckPlanner <Report> ();
 
     /**
      * Check package integrity.
@@ -49,25 +161,105 @@ public class PkgCheck {
     public PkgCheck(String[] args) {
 	PkgList plist = new PkgList();
 	Set <String> names = parseArgs(args);
-	cp = ContentsParser.getInstance();
-	if (dopaths || partpaths) {
-	    doPathNames(names);
-	} else {
-	    for (String pkg : allpkgs ? plist.getPackageNames() : names) {
-		if (plist.getPackage(pkg) == null) {
-		    System.out.println("Invalid package " + pkg);
+	results = new CheckOutput(format);
+	// checking named packages only needs their own entries
+	cp = (dopaths || partpaths || allpkgs) ? ContentsParser.getInstance()
+	    : ContentsParser.getLazyInstance();
+	if (journalFile != null) {
+	    journal = CheckJournal.load(journalFile);
+	}
+	if (opsRate > 0 || latency > 0) {
+	    throttle = new CheckThrottle(opsRate, latency);
+	}
+	if (checkpointFile != null) {
+	    openCheckpoint(args);
+	}
+	if (nworkers > 1) {
+	    pool = Executors.newFixedThreadPool(nworkers);
+	}
+	try {
+	    if (dopaths || partpaths) {
+		doPathNames(names);
+	    } else {
+		Collection <String> pkgs = allpkgs ? plist.getPackageNames()
+		    : names;
+		for (String pkg : pkgs) {
+		    if (plist.getPackage(pkg) != null) {
+			checked.add(pkg);
+		    }
+		}
+		for (String pkg : pkgs) {
+		    Report r = new Report(null, pkg);
+		    if (plist.getPackage(pkg) == null) {
+			r.add(CheckOutput.ERROR, "package", null, null, null,
+				"Invalid package " + pkg);
+			done(r);
+		    } else {
+			r.add(CheckOutput.INFO, "package", null, null, null,
+				"Valid package " + pkg);
+			done(r);
+			doProcess(pkg);
+		    }
+		}
+	    }
+	    if (sampler != null) {
+		chooseSample();
+	    }
+	    if (bydir) {
+		checkAll();
+	    }
+	    for (Report r : output) {
+		if (r.skipped) {
+		    continue;
+		}
+		if (bydir || r.cfd == null) {
+		    queue(CompletableFuture.completedFuture(r));
 		} else {
-		    System.out.println("Valid package " + pkg);
-		    doProcess(pkg);
+		    check(r);
 		}
 	    }
+	    flush(0);
+	    if (checkpoint != null && complete) {
+		checkpoint.finish();
+	    }
+	} finally {
+	    if (pool != null) {
+		pool.shutdown();
+	    }
+	}
+	try {
+	    if (sampler != null) {
+		// drift the journal already knows about isn't reported
+		// again, but still counts towards the estimate
+		for (Report r : candidates) {
+		    if (!r.skipped && (r.hasDrift() || r.hasFailed()
+				|| r.journalled == CheckJournal.DRIFT)) {
+			sampler.drifted(r.unit);
+		    }
+		}
+		results.estimate(sampler.estimate());
+	    }
+	    results.close(entries, drift);
+	} catch (IOException ioe) {
+	    System.err.println("Unable to write results");
+	}
+	if (debug && dopaths) {
+	    System.err.println(cp.getPathFilter());
+	}
+	if (journal != null) {
+	    try {
+		// after a full check, forget paths that have gone away
+		journal.save(journalFile, allpkgs && sampler == null);
+	    } catch (IOException ioe) {
+		System.err.println("Unable to save journal " + journalFile);
+	    }
 	}
     }
 
-    // FIXME -a for all packages
     private Set <String> parseArgs(String[] args) {
-	Set <String> names = new HashSet <String> ();
-	for (String arg : args) {
+	Set <String> names = new LinkedHashSet <String> ();
+	for (int i = 0; i < args.length; i++) {
+	    String arg = args[i];
 	    if ("-l".equals(arg)) {
 		check = false;
 		list = true;
@@ -75,6 +267,8 @@ public class PkgCheck {
 		verbose = true;
 	    } else if ("-a".equals(arg)) {
 		allpkgs = true;
+	    } else if ("-c".equals(arg)) {
+		checksums = true;
 	    } else if ("-V".equals(arg)) {
 		verbose = true;
 		debug = true;
@@ -84,128 +278,771 @@ public class PkgCheck {
 	    } else if ("-P".equals(arg)) {
 		dopaths = false;
 		partpaths = true;
+	    } else if ("-j".equals(arg) && i + 1 < args.length) {
+		try {
+		    nworkers = Integer.parseInt(args[++i]);
+		} catch (NumberFormatException nfe) {
+		    usage();
+		}
+		if (nworkers < 1) {
+		    usage();
+		}
+	    } else if ("-b".equals(arg) && i + 1 < args.length) {
+		try {
+		    limiter = new ThroughputLimiter(
+				ThroughputLimiter.parseRate(args[++i]));
+		} catch (NumberFormatException nfe) {
+		    usage();
+		}
+	    } else if ("-r".equals(arg) && i + 1 < args.length) {
+		try {
+		    opsRate = ThroughputLimiter.parseRate(args[++i]);
+		} catch (NumberFormatException nfe) {
+		    usage();
+		}
+	    } else if ("-L".equals(arg) && i + 1 < args.length) {
+		try {
+		    latency = Long.parseLong(args[++i]);
+		} catch (NumberFormatException nfe) {
+		    usage();
+		}
+		if (latency < 1) {
+		    usage();
+		}
+	    } else if ("-s".equals(arg) && i + 1 < args.length) {
+		try {
+		    sampler = CheckSampler.parse(args[++i]);
+		} catch (NumberFormatException nfe) {
+		    usage();
+		}
+	    } else if ("-S".equals(arg) && i + 1 < args.length) {
+		stratify = args[++i];
+		if (!"package".equals(stratify) && !"type".equals(stratify)) {
+		    usage();
+		}
+	    } else if ("-D".equals(arg)) {
+		bydir = true;
+	    } else if ("-R".equals(arg) && i + 1 < args.length) {
+		checkpointFile = new File(args[++i]);
+	    } else if ("-J".equals(arg) && i + 1 < args.length) {
+		journalFile = new File(args[++i]);
+	    } else if ("-o".equals(arg) && i + 1 < args.length) {
+		format = CheckOutput.parseFormat(args[++i]);
+		if (format < 0) {
+		    usage();
+		}
 	    } else if (arg.startsWith("-")) {
 		usage();
 	    } else {
 		names.add(arg);
 	    }
 	}
+	// a resumed run would choose a different sample
+	if ((stratify != null && sampler == null)
+		|| (checkpointFile != null && (sampler != null || bydir))) {
+	    usage();
+	}
 	return names;
     }
 
+    /*
+     * With -p, the names must match exactly. With -P, they're prefixes
+     * and we check every path that starts with them.
+     */
     private void doPathNames(Set <String> names) {
 	for (String name : names) {
-	    showFile(cp.getFileDetail(name));
+	    if (partpaths) {
+		List <ContentsFileDetail> cfds
+		    = cp.getFileDetailsByPrefix(name);
+		if (cfds.isEmpty()) {
+		    notOwned(name);
+		}
+		for (ContentsFileDetail cfd : cfds) {
+		    submit(cfd, null);
+		}
+	    } else {
+		ContentsFileDetail cfd = cp.getFileDetail(name);
+		if (cfd == null) {
+		    notOwned(name);
+		} else {
+		    submit(cfd, null);
+		}
+	    }
+	}
+    }
+
+    private void notOwned(String name) {
+	Report r = new Report(null, null);
+	r.add(CheckOutput.FAILED, "owned", name, null, null,
+		"Path " + name + " does not belong to any package");
+	done(r);
+    }
+
+    /*
+     * Add an entry to the output, to be checked now or, with a sample or
+     * -D, later. If pkg is null, the entry is reported against all the
+     * packages it belongs to.
+     */
+    private void submit(ContentsFileDetail cfd, String pkg) {
+	Report r = new Report(cfd, pkg);
+	if (sampler != null) {
+	    output.add(r);
+	    r.unit = sampler.add(stratum(cfd, pkg));
+	    candidates.add(r);
+	} else if (bydir) {
+	    output.add(r);
+	    planner.add(cfd, r);
+	} else {
+	    check(r);
+	}
+    }
+
+    /*
+     * Queue up the check of one entry. If an earlier run got this far,
+     * use what it found. If the entry has already been checked for
+     * another package, use that result.
+     */
+    private void check(final Report r) {
+	boolean isShared = r.pkg != null && r.cfd.isShared();
+	if (isShared) {
+	    SharedCheck sc = shared.get(r.cfd);
+	    if (sc != null) {
+		r.source = sc.result;
+		if (--sc.remaining == 0) {
+		    shared.remove(r.cfd);
+		}
+		queue(CompletableFuture.completedFuture(r));
+		return;
+	    }
+	}
+	Future <Report> f;
+	if (checkpoint != null && queued < checkpoint.getResumed()) {
+	    r.restore(checkpoint.getFindings(queued));
+	    if (journal != null) {
+		checkpoint.journal(queued, r.cfd.getName(), journal);
+	    }
+	    f = CompletableFuture.completedFuture(r);
+	} else if (pool == null) {
+	    showFile(r.cfd, r, null);
+	    f = CompletableFuture.completedFuture(r);
+	} else {
+	    f = pool.submit(new Callable <Report> () {
+		public Report call() {
+		    showFile(r.cfd, r, null);
+		    return r;
+		}
+	    });
+	}
+	if (isShared) {
+	    int remaining = -1;
+	    for (String pkg : r.cfd.getPackageNames()) {
+		if (checked.contains(pkg)) {
+		    remaining++;
+		}
+	    }
+	    if (remaining > 0) {
+		shared.put(r.cfd, new SharedCheck(f, remaining));
+	    }
+	}
+	queue(f);
+    }
+
+    private String stratum(ContentsFileDetail cfd, String pkg) {
+	if ("package".equals(stratify)) {
+	    return (pkg == null) ? cfd.getPackageNames().get(0) : pkg;
+	} else if ("type".equals(stratify)) {
+	    return String.valueOf(cfd.getType());
+	}
+	return null;
+    }
+
+    /*
+     * Only check the entries in the sample, and leave the rest out of the
+     * output.
+     */
+    private void chooseSample() {
+	boolean[] chosen = sampler.choose(new Random());
+	for (Report r : candidates) {
+	    if (chosen[r.unit]) {
+		if (bydir) {
+		    planner.add(r.cfd, r);
+		}
+	    } else {
+		r.skipped = true;
+	    }
+	}
+    }
+
+    /*
+     * Add output that's already complete.
+     */
+    private void done(Report r) {
+	if (sampler != null || bydir) {
+	    output.add(r);
+	} else {
+	    queue(CompletableFuture.completedFuture(r));
+	}
+    }
+
+    /*
+     * Add a result to be printed. So that we don't hold on to too many
+     * results, once enough are pending print the oldest.
+     */
+    private void queue(Future <Report> f) {
+	pending.add(f);
+	queued++;
+	flush(nworkers*64);
+    }
+
+    /*
+     * Print pending results, in order, until no more than max remain.
+     */
+    private void flush(int max) {
+	while (pending.size() > max) {
+	    try {
+		Report r = pending.removeFirst().get();
+		if (r.source != null) {
+		    r.copy(r.source.get());
+		}
+		print(r);
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		complete = false;
+		return;
+	    } catch (ExecutionException ee) {
+		System.err.println("Check failed: " + ee.getCause());
+		// the checkpoint mustn't get past a result we don't have
+		complete = false;
+		if (checkpoint != null) {
+		    checkpoint.close();
+		}
+		printed++;
+	    }
+	}
+    }
+
+    private void print(Report r) {
+	if (checkpoint != null && printed >= checkpoint.getResumed()) {
+	    checkpoint.done(printed, r.findings, r.state, r.journalled);
+	}
+	printed++;
+	try {
+	    r.print(results);
+	} catch (IOException ioe) {
+	    if (!writeFailed) {
+		System.err.println("Unable to write results");
+		writeFailed = true;
+	    }
+	}
+	if (r.cfd != null) {
+	    entries++;
+	    if (r.hasDrift()) {
+		drift++;
+	    }
+	}
+    }
+
+    /*
+     * Pick up from where an earlier, interrupted, run with the same
+     * arguments got to. Whatever happens to this run, save our progress
+     * on the way out.
+     */
+    private void openCheckpoint(String[] args) {
+	StringBuilder sb = new StringBuilder();
+	for (String arg : args) {
+	    sb.append(arg).append('\0');
+	}
+	// results are matched up by position, which only holds if the
+	// contents file hasn't changed
+	sb.append(cp.getContentsKey());
+	try {
+	    checkpoint = CheckCheckpoint.open(checkpointFile, sb.toString());
+	} catch (IOException ioe) {
+	    System.err.println("Unable to write checkpoint "
+			+ checkpointFile);
+	    return;
+	}
+	if (debug && checkpoint.getResumed() > 0) {
+	    System.err.println("Resuming, " + checkpoint.getResumed()
+			+ " results already checked");
+	}
+	final CheckCheckpoint cc = checkpoint;
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+	    @Override
+	    public void run() {
+		cc.close();
+	    }
+	});
+    }
+
+    /*
+     * With -D, check all the entries, a directory at a time.
+     */
+    private void checkAll() {
+	List <Future <?>> futures = new ArrayList <Future <?>> ();
+	for (final Map.Entry <String, List <Report>> me
+		 : planner.byDirectory().entrySet()) {
+	    Runnable task = new Runnable() {
+		public void run() {
+		    checkDirectory(me.getKey(), me.getValue());
+		}
+	    };
+	    if (pool == null) {
+		task.run();
+	    } else {
+		futures.add(pool.submit(task));
+	    }
+	}
+	for (Future <?> f : futures) {
+	    try {
+		f.get();
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		complete = false;
+		return;
+	    } catch (ExecutionException ee) {
+		System.err.println("Check failed: " + ee.getCause());
+		complete = false;
+	    }
+	}
+    }
+
+    /*
+     * Check the entries in one directory. Listing the directory first
+     * tells us which entries are missing without looking for them. An
+     * entry that's in more than one package is only checked once, and
+     * the result copied.
+     */
+    private void checkDirectory(String dir, List <Report> reports) {
+	Set <String> names = null;
+	if (check && dir != null) {
+	    long t = (throttle == null) ? 0 : throttle.start();
+	    names = CheckPlanner.list(dir);
+	    if (throttle != null) {
+		throttle.finish(t);
+	    }
+	}
+	Report prev = null;
+	for (Report r : reports) {
+	    if (prev != null && r.cfd.equals(prev.cfd)) {
+		r.copy(prev);
+	    } else {
+		showFile(r.cfd, r, names);
+		prev = r;
+	    }
 	}
     }
 
     /*
      * Shows a nicely formatted list of packages that own the given file.
      */
-    private void showOwningPkgs(ContentsFileDetail cfd) {
-	System.out.print("Path " + cfd.getName() + " belongs to the following");
-	System.out.println(cfd.isShared() ? " packages:" : " package:");
+    private void showOwningPkgs(ContentsFileDetail cfd, Report r) {
+	StringBuilder sb = new StringBuilder();
+	sb.append("Path ").append(cfd.getName())
+	    .append(" belongs to the following")
+	    .append(cfd.isShared() ? " packages:" : " package:")
+	    .append('\n');
 	int i = 0;
 	for (String s : cfd.getPackageNames()) {
 	    i += 2;
 	    i += s.length();
 	    if (i > 79) {
-		System.out.println();
+		sb.append('\n');
 		i = s.length() + 2;
 	    }
-	    System.out.print("  " + s);
+	    sb.append("  ").append(s);
 	}
-	System.out.println();
+	r.add(CheckOutput.INFO, "packages", cfd.getName(), null, null,
+		sb.toString());
     }
 
-    private void showFile(ContentsFileDetail cfd) {
+    private void showFile(ContentsFileDetail cfd, Report r,
+			Set <String> names) {
 	if (dopaths || partpaths) {
-	    showOwningPkgs(cfd);
+	    showOwningPkgs(cfd, r);
 	}
 	if (list) {
-	    System.out.print("  " + cfd.getName());
+	    StringBuilder sb = new StringBuilder();
 	    if (verbose) {
-		System.out.print(" owner=" + cfd.getOwner());
-		System.out.print(" group=" + cfd.getGroup());
-		System.out.print(" mode=" + cfd.getMode());
+		sb.append("owner=").append(cfd.getOwner());
+		sb.append(" group=").append(cfd.getGroup());
+		sb.append(" mode=").append(cfd.getMode());
 		if (cfd.isRegular()) {
-		    System.out.print(" size=" + cfd.getSize());
+		    sb.append(" size=").append(cfd.getSize());
 		}
 	    }
-	    System.out.println();
+	    String details = verbose ? sb.toString() : null;
+	    r.add(CheckOutput.INFO, "entry", cfd.getName(), details, null,
+		verbose ? "  " + cfd.getName() + " " + details
+		    : "  " + cfd.getName());
 	}
 	if (check) {
-	    File f = new File(cfd.getName());
-	    if (f.exists()) {
-		if (cfd.isRegular()) {
-		    if (f.isFile()) {
-			long fmodtime = f.lastModified()/1000;
-			long pmodtime = cfd.lastModified();
-			if (debug) {
-			    System.out.println("    File " +
-					cfd.getName() +
-					" confirmed present");
-			}
-			if (f.length() == Long.parseLong(cfd.getSize())) {
-			    if (debug) {
-				System.out.println("    File " +
-						cfd.getName() +
-						" has correct size");
-			    }
-			} else {
-			    if (cfd.isEditable()) {
-				if (verbose) {
-				    System.out.println("   WARNING: File " +
-					cfd.getName() +
-					" has incorrect size");
-				}
-			    } else {
-				System.out.println("   ERROR: File " +
-					cfd.getName() +
-					" has incorrect size");
-			    }
-			}
-			// allow a little rounding error
-			if (Math.abs(fmodtime - pmodtime) < 2) {
-			    if (debug) {
-				System.out.println("      Timestamp verified.");
-			    }
-			} else {
-			    if (cfd.isEditable()) {
-				if (verbose) {
-				    System.out.println("   WARNING: File " +
-					cfd.getName() +
-					" has incorrect modification time");
-				}
-			    } else {
-				System.out.println("   ERROR: File " +
-					cfd.getName() +
-					" has incorrect modification time");
-			    }
+	    checkFile(cfd, r, names);
+	}
+    }
+
+    /*
+     * Check an entry against what's on disk. Everything we need comes
+     * from a single stat of the path, which doesn't follow symlinks.
+     * If we have a listing of the directory, it tells us whether the
+     * path is there at all.
+     */
+    private void checkFile(ContentsFileDetail cfd, Report r,
+			Set <String> names) {
+	if (names != null
+		&& !names.contains(CheckPlanner.baseName(cfd.getName()))) {
+	    missing(cfd, r);
+	    return;
+	}
+	PathStat attrs;
+	long t = (throttle == null) ? 0 : throttle.start();
+	try {
+	    attrs = PathStat.stat(Paths.get(cfd.getName()));
+	} catch (IOException ioe) {
+	    missing(cfd, r);
+	    return;
+	} finally {
+	    if (throttle != null) {
+		throttle.finish(t);
+	    }
+	}
+	// a hard link depends on another path, so may change without it
+	if (journal == null || !attrs.hasIdentity() || cfd.isHardLink()) {
+	    compare(cfd, attrs, r);
+	    return;
+	}
+	long state = CheckJournal.state(cfd, attrs, checksums);
+	int prev = journal.lookup(cfd.getName(), state);
+	if (prev != CheckJournal.UNKNOWN) {
+	    r.journal(state, prev);
+	}
+	if (prev == CheckJournal.CLEAN) {
+	    if (debug) {
+		r.add(CheckOutput.OK, "journal", cfd.getName(), null, null,
+			"    Path " + cfd.getName()
+			+ " unchanged since last check");
+	    }
+	} else if (prev == CheckJournal.DRIFT) {
+	    if (verbose) {
+		r.add(CheckOutput.WARNING, "journal", cfd.getName(), null,
+			null, "   WARNING: Path " + cfd.getName()
+			+ " unchanged since drift was last reported");
+	    }
+	} else {
+	    compare(cfd, attrs, r);
+	    // don't remember failures that might be transient
+	    if (!r.hasFailed()) {
+		int result = r.hasDrift() ? CheckJournal.DRIFT
+		    : CheckJournal.CLEAN;
+		journal.record(cfd.getName(), state, result);
+		r.journal(state, result);
+	    }
+	}
+    }
+
+    private void missing(ContentsFileDetail cfd, Report r) {
+	r.add(CheckOutput.FAILED, "exists", cfd.getName(), null, null,
+		"Missing or unreadable path " + cfd.getName());
+    }
+
+    /*
+     * Compare an entry with the attributes of the path on disk.
+     */
+    private void compare(ContentsFileDetail cfd, PathStat attrs, Report r) {
+	String name = cfd.getName();
+	if (cfd.isRegular()) {
+	    if (attrs.isRegularFile()) {
+		long fmodtime = attrs.modTime();
+		long pmodtime = cfd.lastModified();
+		if (debug) {
+		    r.add(CheckOutput.OK, "type", name, "file", null,
+			"    File " + name + " confirmed present");
+		}
+		String psize = Long.toString(cfd.sizeValue());
+		if (attrs.size() == cfd.sizeValue()) {
+		    if (debug) {
+			r.add(CheckOutput.OK, "size", name, psize, null,
+			    "    File " + name + " has correct size");
+		    }
+		    if (checksums && !cfd.isEditable()) {
+			checkSum(cfd, r);
+		    }
+		} else {
+		    String fsize = Long.toString(attrs.size());
+		    if (cfd.isEditable()) {
+			if (verbose) {
+			    r.add(CheckOutput.WARNING, "size", name, psize,
+				fsize, "   WARNING: File " + name
+				+ " has incorrect size");
 			}
 		    } else {
-			System.out.println("   ERROR: Path " +
-					cfd.getName() +
-					" is not a file");
+			r.add(CheckOutput.ERROR, "size", name, psize, fsize,
+				"   ERROR: File " + name
+				+ " has incorrect size");
 		    }
 		}
-		if (cfd.isDirectory()) {
-		    if (f.isDirectory()) {
-			if (debug) {
-			    System.out.println("    Directory " +
-					cfd.getName() +
-					" confirmed present");
+		// allow a little rounding error
+		if (Math.abs(fmodtime - pmodtime) < 2) {
+		    if (debug) {
+			r.add(CheckOutput.OK, "mtime", name,
+				Long.toString(pmodtime), null,
+				"      Timestamp verified.");
+		    }
+		} else {
+		    String pm = Long.toString(pmodtime);
+		    String fm = Long.toString(fmodtime);
+		    if (cfd.isEditable()) {
+			if (verbose) {
+			    r.add(CheckOutput.WARNING, "mtime", name, pm, fm,
+				"   WARNING: File " + name
+				+ " has incorrect modification time");
 			}
 		    } else {
-			System.out.println("   ERROR: Path " +
-					cfd.getName() +
-					" is not a directory");
+			r.add(CheckOutput.ERROR, "mtime", name, pm, fm,
+				"   ERROR: File " + name
+				+ " has incorrect modification time");
 		    }
 		}
 	    } else {
-		System.err.println("Missing or unreadable path "
-			+ cfd.getName());
+		r.add(CheckOutput.ERROR, "type", name, "file", typeName(attrs),
+			"   ERROR: Path " + name + " is not a file");
+	    }
+	}
+	if (cfd.isDirectory()) {
+	    if (attrs.isDirectory()) {
+		if (debug) {
+		    r.add(CheckOutput.OK, "type", name, "directory", null,
+			"    Directory " + name + " confirmed present");
+		}
+	    } else {
+		r.add(CheckOutput.ERROR, "type", name, "directory",
+			typeName(attrs),
+			"   ERROR: Path " + name + " is not a directory");
+	    }
+	}
+	if (cfd.isSymLink()) {
+	    checkSymLink(cfd, attrs, r);
+	} else if (cfd.isHardLink()) {
+	    checkHardLink(cfd, attrs, r);
+	} else if (cfd.isDevice() || cfd.getType() == 'p') {
+	    checkSpecial(cfd, attrs, r);
+	}
+	if (!cfd.isLink()) {
+	    checkOwnership(cfd, attrs, r);
+	}
+    }
+
+    /*
+     * A symbolic link must point where the contents file says, exactly
+     * as given, relative or not.
+     */
+    private void checkSymLink(ContentsFileDetail cfd, PathStat attrs,
+				Report r) {
+	String name = cfd.getName();
+	if (!attrs.isSymbolicLink()) {
+	    r.add(CheckOutput.ERROR, "type", name, "symlink", typeName(attrs),
+		"   ERROR: Path " + name + " is not a symbolic link");
+	    return;
+	}
+	if (debug) {
+	    r.add(CheckOutput.OK, "type", name, "symlink", null,
+		"    Symbolic link " + name + " confirmed present");
+	}
+	String ptarget = cfd.getTarget();
+	String ftarget;
+	try {
+	    ftarget = Files.readSymbolicLink(Paths.get(name)).toString();
+	} catch (IOException ioe) {
+	    r.add(CheckOutput.FAILED, "target", name, ptarget, null,
+		"Unable to read link " + name);
+	    return;
+	}
+	if (ftarget.equals(ptarget)) {
+	    if (debug) {
+		r.add(CheckOutput.OK, "target", name, ptarget, null,
+			"      Link target verified.");
 	    }
+	} else {
+	    r.add(CheckOutput.ERROR, "target", name, ptarget, ftarget,
+			"   ERROR: Symbolic link " + name
+			+ " has incorrect target (expected " + ptarget
+			+ ", found " + ftarget + ")");
+	}
+    }
+
+    /*
+     * A hard link must be the same file as its target, which is given
+     * relative to the directory the link is in, if it isn't absolute.
+     */
+    private void checkHardLink(ContentsFileDetail cfd, PathStat attrs,
+				Report r) {
+	String name = cfd.getName();
+	String ptarget = cfd.getTarget();
+	Path p = Paths.get(name);
+	Path tp = (p.getParent() == null) ? Paths.get(ptarget)
+	    : p.getParent().resolve(ptarget).normalize();
+	boolean same;
+	try {
+	    if (attrs.hasIdentity()) {
+		PathStat tattrs = PathStat.stat(tp);
+		same = attrs.device() == tattrs.device()
+		    && attrs.inode() == tattrs.inode();
+	    } else {
+		same = !attrs.isSymbolicLink() && !Files.isSymbolicLink(tp)
+		    && Files.isSameFile(p, tp);
+	    }
+	} catch (IOException ioe) {
+	    same = false;
+	}
+	if (same) {
+	    if (debug) {
+		r.add(CheckOutput.OK, "link", name, tp.toString(), null,
+			"    Hard link " + name + " confirmed present");
+	    }
+	} else {
+	    r.add(CheckOutput.ERROR, "link", name, tp.toString(), null,
+			"   ERROR: Path " + name + " is not a hard link to "
+			+ tp);
+	}
+    }
+
+    /*
+     * Devices and named pipes. Only the type is checked, not the
+     * device numbers.
+     */
+    private void checkSpecial(ContentsFileDetail cfd, PathStat attrs,
+				Report r) {
+	String name = cfd.getName();
+	String ptype;
+	boolean ok;
+	if (cfd.getType() == 'b') {
+	    ptype = "block device";
+	    ok = attrs.isBlockDevice();
+	} else if (cfd.getType() == 'c') {
+	    ptype = "character device";
+	    ok = attrs.isCharacterDevice();
+	} else {
+	    ptype = "pipe";
+	    ok = attrs.isPipe();
+	}
+	if (ok) {
+	    if (debug) {
+		r.add(CheckOutput.OK, "type", name, ptype, null,
+			"    Path " + name + " confirmed to be a " + ptype);
+	    }
+	} else {
+	    r.add(CheckOutput.ERROR, "type", name, ptype, typeName(attrs),
+			"   ERROR: Path " + name + " is not a " + ptype);
+	}
+    }
+
+    /*
+     * What sort of thing is on disk, for the structured output.
+     */
+    private static String typeName(PathStat attrs) {
+	if (attrs.isRegularFile()) {
+	    return "file";
+	} else if (attrs.isDirectory()) {
+	    return "directory";
+	} else if (attrs.isSymbolicLink()) {
+	    return "symlink";
+	} else if (attrs.isBlockDevice()) {
+	    return "block device";
+	} else if (attrs.isCharacterDevice()) {
+	    return "character device";
+	} else if (attrs.isPipe()) {
+	    return "pipe";
+	}
+	return "other";
+    }
+
+    /*
+     * Read the file and compare its checksum. There's no point if the
+     * size is already known to be wrong, and editable files are
+     * expected to change.
+     */
+    private void checkSum(ContentsFileDetail cfd, Report r) {
+	long pcksum = cfd.getChecksum();
+	if (pcksum == ContentsTable.ABSENT) {
+	    return;
+	}
+	String name = cfd.getName();
+	long fcksum;
+	try {
+	    fcksum = FileChecksum.sum(Paths.get(name), limiter);
+	} catch (IOException ioe) {
+	    r.add(CheckOutput.FAILED, "checksum", name, null, null,
+		"Unable to read file " + name);
+	    return;
+	}
+	if (fcksum == pcksum) {
+	    if (debug) {
+		r.add(CheckOutput.OK, "checksum", name,
+			Long.toString(pcksum), null,
+			"      Checksum verified.");
+	    }
+	} else {
+	    r.add(CheckOutput.ERROR, "checksum", name, Long.toString(pcksum),
+			Long.toString(fcksum), "   ERROR: File " + name
+			+ " has incorrect checksum (expected " + pcksum
+			+ ", found " + fcksum + ")");
+	}
+    }
+
+    /*
+     * Compare the owner, group, and permissions. The contents file
+     * may give any of these as ? if they don't matter. We may not be
+     * able to see the setuid, setgid, and sticky bits, see PathStat.
+     */
+    private void checkOwnership(ContentsFileDetail cfd, PathStat attrs,
+				Report r) {
+	String name = cfd.getName();
+	String owner = cfd.getOwner();
+	if (owner != null && !"?".equals(owner)
+		&& !owner.equals(attrs.getOwner())) {
+	    r.add(CheckOutput.ERROR, "owner", name, owner, attrs.getOwner(),
+			"   ERROR: Path " + name
+			+ " has incorrect owner (expected " + owner
+			+ ", found " + attrs.getOwner() + ")");
+	}
+	String group = cfd.getGroup();
+	if (group != null && !"?".equals(group)
+		&& !group.equals(attrs.getGroup())) {
+	    r.add(CheckOutput.ERROR, "group", name, group, attrs.getGroup(),
+			"   ERROR: Path " + name
+			+ " has incorrect group (expected " + group
+			+ ", found " + attrs.getGroup() + ")");
+	}
+	int pmode = parseMode(cfd.getMode());
+	if (pmode >= 0) {
+	    int mask = attrs.getModeMask();
+	    String pm = Integer.toOctalString(pmode & mask);
+	    if ((pmode & mask) == attrs.getMode()) {
+		if (debug) {
+		    r.add(CheckOutput.OK, "mode", name, pm, null,
+			"      Permissions verified.");
+		}
+	    } else {
+		String fm = Integer.toOctalString(attrs.getMode());
+		r.add(CheckOutput.ERROR, "mode", name, pm, fm,
+			"   ERROR: Path " + name
+			+ " has incorrect permissions (expected "
+			+ pm + ", found " + fm + ")");
+	    }
+	}
+    }
+
+    /*
+     * The mode from the contents file, or -1 if it isn't given.
+     */
+    private static int parseMode(String s) {
+	if (s == null) {
+	    return -1;
+	}
+	try {
+	    return Integer.parseInt(s, 8);
+	} catch (NumberFormatException nfe) {
+	    return -1;
 	}
     }
 
@@ -213,18 +1050,155 @@ public class PkgCheck {
 	ContentsPackage cpp = cp.getPackage(pkg);
 	if (cpp == null) {
 	    if (debug) {
-		System.out.println("    Package " + pkg + " is empty.");
+		Report r = new Report(null, pkg);
+		r.add(CheckOutput.INFO, "package", null, null, null,
+			"    Package " + pkg + " is empty.");
+		done(r);
 	    }
 	} else {
-	    for (ContentsFileDetail cfd : cpp.getDetails()) {
-		showFile(cfd);
+	    List <ContentsFileDetail> cfds
+		= new ArrayList <ContentsFileDetail> (cpp.getDetails());
+	    Collections.sort(cfds, new Comparator <ContentsFileDetail> () {
+		public int compare(ContentsFileDetail c1,
+				ContentsFileDetail c2) {
+		    return c1.getName().compareTo(c2.getName());
+		}
+	    });
+	    for (ContentsFileDetail cfd : cfds) {
+		submit(cfd, pkg);
 	    }
 	}
     }
 
+    /*
+     * The output from checking one entry, held until it's time to
+     * print it.
+     */
+    static class Report {
+	// the entry being checked, if any
+	private final ContentsFileDetail cfd;
+	// the package being checked, if any
+	private final String pkg;
+	private List <CheckOutput.Finding> findings;
+	private boolean drift;
+	private boolean failed;
+	// with a sample, where this entry is in it, and if it was left out
+	private int unit = -1;
+	private boolean skipped;
+	// the check of the same entry for another package, if any
+	private Future <Report> source;
+	// what was recorded in the journal, if anything
+	private long state;
+	private int journalled = CheckJournal.UNKNOWN;
+
+	Report(ContentsFileDetail cfd, String pkg) {
+	    this.cfd = cfd;
+	    this.pkg = pkg;
+	}
+
+	/*
+	 * Give this report the same output as another, complete, one.
+	 */
+	void copy(Report r) {
+	    findings = r.findings;
+	    drift = r.drift;
+	    failed = r.failed;
+	    state = r.state;
+	    journalled = r.journalled;
+	}
+
+	/*
+	 * Note what the journal holds for this entry, so it can be saved
+	 * in the checkpoint.
+	 */
+	void journal(long state, int result) {
+	    this.state = state;
+	    journalled = result;
+	}
+
+	/*
+	 * Give this report the output saved by an earlier run.
+	 */
+	void restore(List <CheckOutput.Finding> l) {
+	    findings = l;
+	    if (l != null) {
+		for (CheckOutput.Finding f : l) {
+		    drift |= f.getLevel() == CheckOutput.ERROR;
+		    failed |= f.getLevel() == CheckOutput.FAILED;
+		}
+	    }
+	}
+
+	void add(int level, String kind, String path, String expected,
+		String actual, String text) {
+	    if (findings == null) {
+		findings = new ArrayList <CheckOutput.Finding> (2);
+	    }
+	    findings.add(new CheckOutput.Finding(level, kind, path, expected,
+						actual, text));
+	    if (level == CheckOutput.ERROR) {
+		drift = true;
+	    } else if (level == CheckOutput.FAILED) {
+		failed = true;
+	    }
+	}
+
+	/*
+	 * True if drift between the contents file and the path on disk
+	 * was found.
+	 */
+	boolean hasDrift() {
+	    return drift;
+	}
+
+	/*
+	 * True if something couldn't be checked at all.
+	 */
+	boolean hasFailed() {
+	    return failed;
+	}
+
+	void print(CheckOutput results) throws IOException {
+	    if (findings == null) {
+		return;
+	    }
+	    String pkgs = pkg;
+	    if (pkgs == null && cfd != null && !results.isText()) {
+		StringBuilder sb = new StringBuilder();
+		for (String s : cfd.getPackageNames()) {
+		    if (sb.length() > 0) {
+			sb.append(' ');
+		    }
+		    sb.append(s);
+		}
+		pkgs = sb.toString();
+	    }
+	    for (CheckOutput.Finding f : findings) {
+		results.write(f, pkgs);
+	    }
+	}
+    }
+
+    /*
+     * The check of an entry shared between packages, with the number of
+     * those packages still to be queued.
+     */
+    static class SharedCheck {
+	private final Future <Report> result;
+	private int remaining;
+
+	SharedCheck(Future <Report> result, int remaining) {
+	    this.result = result;
+	    this.remaining = remaining;
+	}
+    }
+
     private static void usage() {
-	System.err.println("Usage: check [-v|-V] [-l | -p path ... | "
-		+ "-P partial-path ...] name ...");
+	System.err.println("Usage: check [-v|-V] [-j workers] "
+		+ "[-c [-b bytes/s]] [-r ops/s] [-L latency-ms] "
+		+ "[-s count|percent% [-S package|type]] "
+		+ "[-D | -R checkpoint] [-J journal] [-o text|jsonl|tsv] "
+		+ "[-l | -p path ... | -P partial-path ...] name ...");
 	System.exit(1);
     }
 
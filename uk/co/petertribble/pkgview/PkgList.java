@@ -24,6 +24,10 @@ package uk.co.petertribble.pkgview;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * PkgList - shows available Solaris packages in a JList.
@@ -35,6 +39,7 @@ public class PkgList {
     private Set <SolarisPackage> pkglist;
     private Map <String, SolarisPackage> pkgMap;
     private Map <String, Set <SolarisPackage>> revDependencies;
+    private DependencyGraph graph;
 
     /**
      * Create a package list.
@@ -49,11 +54,39 @@ public class PkgList {
      * Packages are in directories, so ignore files
      * and anything hidden (starting with a dot) and
      * also the locale directory
+     *
+     * If the system property pkgview.pkglist.eager is true, every
+     * package's metadata is loaded straight away.
+     *
+     * If the system property pkgview.pkglist.cache names a directory,
+     * the metadata of every package is kept there in a PkgListCache, and
+     * only the packages that have changed since it was saved are read.
+     *
+     * @param pkgroot the directory holding the package metadata
      */
     public PkgList(String pkgroot) {
+	this(pkgroot, Boolean.getBoolean("pkgview.pkglist.eager"));
+    }
+
+    /**
+     * Create a package list, optionally loading the pkginfo and depend
+     * files of every package in parallel before returning.
+     *
+     * @param pkgroot the directory holding the package metadata
+     * @param eager if true, load all the package metadata now
+     *
+     * @see #loadAll
+     */
+    public PkgList(String pkgroot, boolean eager) {
 	pkgMap = new HashMap <String, SolarisPackage> ();
 	pkglist = new TreeSet <SolarisPackage> ();
 
+	String cachedir = System.getProperty("pkgview.pkglist.cache");
+	if (cachedir != null) {
+	    loadCached(pkgroot, new PkgListCache(pkgroot, new File(cachedir)));
+	    return;
+	}
+
 	File pkgrootf = new File(pkgroot);
 
 	for (File f : pkgrootf.listFiles()) {
@@ -66,6 +99,99 @@ public class PkgList {
 		pkgMap.put(sp.getName(), sp);
 	    }
 	}
+	if (eager) {
+	    loadAll();
+	}
+    }
+
+    /*
+     * Fill in the packages from the cache, reading only those that
+     * aren't in it or have changed, and save the cache again if it's
+     * out of date. A stat of the directory and one of pkginfo tell us
+     * that it's a package, and those and a stat of the depend file tell
+     * us whether it has changed.
+     */
+    private void loadCached(String pkgroot, PkgListCache cache) {
+	cache.load();
+	Map <String, long[]> stamps = new HashMap <String, long[]> ();
+	List <SolarisPackage> changed = new ArrayList <SolarisPackage> ();
+	int restored = 0;
+	for (File f : new File(pkgroot).listFiles()) {
+	    if (f.isHidden() || f.getName().equals("locale")) {
+		continue;
+	    }
+	    long[] stamp = PkgListCache.stamp(f);
+	    if (stamp != null) {
+		SolarisPackage sp = new SolarisPackage(pkgroot, f.getName());
+		pkglist.add(sp);
+		pkgMap.put(sp.getName(), sp);
+		stamps.put(sp.getName(), stamp);
+		if (cache.restore(sp, stamp)) {
+		    restored++;
+		} else {
+		    changed.add(sp);
+		}
+	    }
+	}
+	if (!changed.isEmpty() || restored != cache.size()) {
+	    load(changed);
+	    cache.save(pkglist, stamps);
+	}
+    }
+
+    /**
+     * Load the pkginfo and depend files of every package, using a pool
+     * of threads, rather than one at a time as each package is first
+     * looked at. Reading the files is mostly waiting for the disk, so
+     * there are more threads than processors.
+     *
+     * This waits for all the packages to be loaded, which guarantees
+     * that the thread calling it sees everything that was read, and so
+     * does any thread it hands this PkgList to in the usual ways, such
+     * as the event dispatch thread. Reading a package doesn't take long,
+     * so if it's interrupted it still waits, and leaves the thread
+     * interrupted.
+     */
+    public void loadAll() {
+	load(pkglist);
+    }
+
+    private void load(Collection <SolarisPackage> pkgs) {
+	if (pkgs.isEmpty()) {
+	    return;
+	}
+	int nthreads = Math.max(4,
+			2*Runtime.getRuntime().availableProcessors());
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	boolean interrupted = false;
+	try {
+	    List <Future <?>> futures = new ArrayList <Future <?>> ();
+	    for (final SolarisPackage pkg : pkgs) {
+		futures.add(pool.submit(new Runnable() {
+		    public void run() {
+			pkg.load();
+		    }
+		}));
+	    }
+	    for (Future <?> f : futures) {
+		while (true) {
+		    try {
+			f.get();
+			break;
+		    } catch (InterruptedException ie) {
+			interrupted = true;
+		    } catch (ExecutionException ee) {
+			// that package will be loaded again when needed
+			break;
+		    }
+		}
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
     }
 
     public Set <SolarisPackage> getPackages() {
@@ -88,6 +214,46 @@ public class PkgList {
 	return (revDependencies == null) ? null : revDependencies.get(pkg);
     }
 
+    /**
+     * Return the graph of the dependencies between the packages, which is
+     * built the first time it's asked for.
+     *
+     * @return the DependencyGraph of the packages in this list
+     */
+    public synchronized DependencyGraph getDependencyGraph() {
+	if (graph == null) {
+	    graph = new DependencyGraph(pkglist);
+	}
+	return graph;
+    }
+
+    /**
+     * Return the installed packages that would lose a prerequisite,
+     * directly or through other packages, if the given packages were
+     * removed. Unlike getDependantSet() this follows the whole chain of
+     * dependants. Results are remembered, so repeated queries are quick.
+     *
+     * @param names the names of the packages to be removed
+     *
+     * @return the affected packages, not including any of those removed
+     */
+    public Set <SolarisPackage> getRemovalImpact(Collection <String> names) {
+	DependencyGraph g = getDependencyGraph();
+	BitSet removed = new BitSet(g.size());
+	for (String s : names) {
+	    int id = g.getId(s);
+	    if (id >= 0) {
+		removed.set(id);
+	    }
+	}
+	Set <SolarisPackage> affected = new TreeSet <SolarisPackage> ();
+	BitSet ids = g.getRemovalImpact(removed);
+	for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+	    affected.add(pkgMap.get(g.getName(i)));
+	}
+	return affected;
+    }
+
     /**
      * Create a reverse dependency tree. Pull the dependencies out
      * and populate another Map.
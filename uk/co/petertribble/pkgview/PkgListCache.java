@@ -0,0 +1,288 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Save and restore the parsed pkginfo and depend files of all the
+ * packages in a package root, so that PkgList only needs to read the
+ * files of packages that have been added or changed since the last run.
+ *
+ * Each package is saved along with the modification times of its
+ * directory, its pkginfo file, and its install/depend file. Adding or
+ * removing a package replaces its directory, installing a patch
+ * rewrites pkginfo, and the dependencies can only change through the
+ * depend file, so if all three are unchanged the saved metadata is
+ * used. The cache is ignored if its format version doesn't match.
+ */
+public class PkgListCache {
+
+    private static final String MAGIC = "pkgview package cache";
+
+    /*
+     * Increment this whenever the layout of the cache changes.
+     */
+    private static final int VERSION = 2;
+
+    private String pkgroot;
+    private File cachef;
+    private Map <String, Entry> entries = new HashMap <String, Entry> ();
+
+    /**
+     * Create a PkgListCache for the given package root, with the cache
+     * stored in the given directory.
+     *
+     * @param pkgroot the directory holding the package metadata
+     * @param cachedir the directory holding the cache
+     */
+    public PkgListCache(String pkgroot, File cachedir) {
+	this.pkgroot = new File(pkgroot).getAbsolutePath();
+	// allow for different package roots, such as install images
+	cachef = new File(cachedir, "pkglist-"
+		+ Integer.toHexString(this.pkgroot.hashCode()) + ".cache");
+    }
+
+    /**
+     * Return the modification times identifying the current state of a
+     * package directory.
+     *
+     * @param dir the package directory
+     *
+     * @return the modification times of the directory, its pkginfo file,
+     * and its depend file, which is zero if there isn't one, or null if
+     * it isn't a directory with a pkginfo file
+     */
+    public static long[] stamp(File dir) {
+	try {
+	    BasicFileAttributes dattrs = Files.readAttributes(dir.toPath(),
+					BasicFileAttributes.class);
+	    if (!dattrs.isDirectory()) {
+		return null;
+	    }
+	    BasicFileAttributes iattrs = Files.readAttributes(
+		new File(dir, "pkginfo").toPath(), BasicFileAttributes.class);
+	    long dtime = new File(dir, "install/depend").lastModified();
+	    return new long[] { dattrs.lastModifiedTime().toMillis(),
+				iattrs.lastModifiedTime().toMillis(), dtime };
+	} catch (IOException ioe) {
+	    return null;
+	}
+    }
+
+    /**
+     * Read the cache, if there is one. Any errors are ignored, and
+     * leave the cache empty.
+     */
+    public void load() {
+	entries.clear();
+	if (!cachef.exists()) {
+	    return;
+	}
+	try {
+	    DataInputStream dis = new DataInputStream(
+		new BufferedInputStream(new FileInputStream(cachef), 65536));
+	    try {
+		if (!MAGIC.equals(dis.readUTF()) || dis.readInt() != VERSION
+			|| !pkgroot.equals(dis.readUTF())) {
+		    return;
+		}
+		int n = dis.readInt();
+		Map <String, Entry> m = new HashMap <String, Entry> (n*2);
+		for (int i = 0; i < n; i++) {
+		    Entry e = new Entry(dis);
+		    m.put(e.name, e);
+		}
+		entries = m;
+	    } finally {
+		dis.close();
+	    }
+	} catch (IOException ioe) {
+	    // truncated or otherwise damaged, so read the packages again
+	}
+    }
+
+    /**
+     * Return the number of packages in the cache.
+     *
+     * @return the number of packages read by load()
+     */
+    public int size() {
+	return entries.size();
+    }
+
+    /**
+     * Fill in a package's metadata from the cache, if it's there and
+     * the package hasn't changed.
+     *
+     * @param pkg the package
+     * @param stamp the current state of the package, from stamp()
+     *
+     * @return true if the metadata was restored from the cache
+     */
+    public boolean restore(SolarisPackage pkg, long[] stamp) {
+	Entry e = entries.get(pkg.getName());
+	if (e == null || e.dirTime != stamp[0] || e.infoTime != stamp[1]
+		|| e.dependTime != stamp[2]) {
+	    return false;
+	}
+	pkg.restore(e.info, e.dependson, e.rdepends, e.incompatibles);
+	return true;
+    }
+
+    /**
+     * Save the metadata of the given packages as the cache. Any packages
+     * not yet loaded are loaded first. Errors are ignored, as the
+     * packages can always be read again. The cache is written to a
+     * temporary file and renamed into place, so concurrent readers never
+     * see a partial cache.
+     *
+     * @param pkgs the packages to save
+     * @param stamps the state of each package, from stamp(), by name
+     */
+    public void save(Collection <SolarisPackage> pkgs,
+		Map <String, long[]> stamps) {
+	File tmpf = null;
+	try {
+	    File dir = cachef.getParentFile();
+	    if (!dir.exists() && !dir.mkdirs()) {
+		return;
+	    }
+	    tmpf = File.createTempFile("pkglist", ".tmp", dir);
+	    DataOutputStream dos = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(tmpf), 65536));
+	    try {
+		dos.writeUTF(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeUTF(pkgroot);
+		dos.writeInt(pkgs.size());
+		for (SolarisPackage pkg : pkgs) {
+		    long[] stamp = stamps.get(pkg.getName());
+		    dos.writeUTF(pkg.getName());
+		    dos.writeLong(stamp[0]);
+		    dos.writeLong(stamp[1]);
+		    dos.writeLong(stamp[2]);
+		    Map <String, String> info = pkg.infoMap();
+		    dos.writeInt(info.size());
+		    for (Map.Entry <String, String> me : info.entrySet()) {
+			writeString(dos, me.getKey());
+			writeString(dos, me.getValue());
+		    }
+		    writeSet(dos, pkg.getDependencySet());
+		    writeSet(dos, pkg.getRDependencySet());
+		    writeSet(dos, pkg.getIncompatibleSet());
+		}
+	    } finally {
+		dos.close();
+	    }
+	    Files.move(tmpf.toPath(), cachef.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	    tmpf = null;
+	} catch (IOException ioe) {
+	} finally {
+	    if (tmpf != null) {
+		tmpf.delete();
+	    }
+	}
+    }
+
+    /*
+     * pkginfo values can be longer than writeUTF allows.
+     */
+    private static String readString(DataInputStream dis)
+		throws IOException {
+	int len = dis.readInt();
+	if (len < 0 || len > 1048576) {
+	    throw new IOException("bad cache");
+	}
+	byte[] b = new byte[len];
+	dis.readFully(b);
+	return new String(b, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream dos, String s)
+		throws IOException {
+	byte[] b = s.getBytes("UTF-8");
+	dos.writeInt(b.length);
+	dos.write(b);
+    }
+
+    private static Set <String> readSet(DataInputStream dis)
+		throws IOException {
+	int n = dis.readInt();
+	Set <String> s = new TreeSet <String> ();
+	for (int i = 0; i < n; i++) {
+	    s.add(dis.readUTF());
+	}
+	return s;
+    }
+
+    private static void writeSet(DataOutputStream dos, Set <String> s)
+		throws IOException {
+	dos.writeInt(s.size());
+	for (String name : s) {
+	    dos.writeUTF(name);
+	}
+    }
+
+    /*
+     * The saved metadata of one package.
+     */
+    static class Entry {
+	final String name;
+	final long dirTime;
+	final long infoTime;
+	final long dependTime;
+	final Map <String, String> info;
+	final Set <String> dependson;
+	final Set <String> rdepends;
+	final Set <String> incompatibles;
+
+	Entry(DataInputStream dis) throws IOException {
+	    name = dis.readUTF();
+	    dirTime = dis.readLong();
+	    infoTime = dis.readLong();
+	    dependTime = dis.readLong();
+	    int n = dis.readInt();
+	    if (n < 0) {
+		throw new IOException("bad cache");
+	    }
+	    info = new HashMap <String, String> ();
+	    for (int i = 0; i < n; i++) {
+		info.put(readString(dis), readString(dis));
+	    }
+	    dependson = readSet(dis);
+	    rdepends = readSet(dis);
+	    incompatibles = readSet(dis);
+	}
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * PkgOwner - report which packages own each of a list of paths, like
+ * pkgchk -l -p, but for many paths at once.
+ *
+ * Path names are read one per line, from the named files or from
+ * standard input, and for each one a line is written with the path and
+ * the names of the packages that own it, separated by a tab, or a -
+ * if no package owns it. With -p, a path that isn't in the contents
+ * file is attributed to its longest leading directory that is, and the
+ * line has the path, the owned path that matched, and the packages.
+ *
+ * Input and output go through large buffers, and most paths that don't
+ * belong to any package are rejected by the contents file's Bloom filter
+ * without being looked up, so many thousands of paths can be resolved a
+ * second once the contents file has been loaded. As input is often
+ * sorted, the result for the last parent directory looked up is kept.
+ */
+public class PkgOwner {
+
+    private static final int BUFSIZE = 1024*1024;
+
+    private final ContentsParser cp;
+    private final boolean prefix;
+    private final Writer w;
+
+    // the last parent directory resolved, and what it resolved to
+    private String lastDir;
+    private ContentsFileDetail lastOwner;
+
+    private long lookups;
+
+    /**
+     * Create a PkgOwner, writing to standard output.
+     *
+     * @param prefix if true, paths that don't belong to a package are
+     * attributed to their longest owned directory
+     */
+    public PkgOwner(boolean prefix) {
+	this.prefix = prefix;
+	cp = ContentsParser.getInstance();
+	w = new BufferedWriter(new OutputStreamWriter(System.out), BUFSIZE);
+    }
+
+    /**
+     * Resolve every path read from the given input, one per line.
+     *
+     * @param r where to read path names from
+     *
+     * @throws IOException if the input can't be read or the output
+     * written
+     */
+    public void resolve(Reader r) throws IOException {
+	BufferedReader in = new BufferedReader(r, BUFSIZE);
+	String s;
+	while ((s = in.readLine()) != null) {
+	    if (s.length() > 0) {
+		resolve(s);
+	    }
+	}
+    }
+
+    /**
+     * Resolve a single path.
+     *
+     * @param path the path name to look up
+     *
+     * @throws IOException if the output can't be written
+     */
+    public void resolve(String path) throws IOException {
+	lookups++;
+	String p = trim(path);
+	ContentsFileDetail cfd = cp.getFileDetail(p);
+	if (cfd == null && prefix) {
+	    cfd = owningDirectory(p);
+	}
+	w.write(path);
+	w.write('\t');
+	if (prefix) {
+	    w.write((cfd == null) ? "-" : cfd.getName());
+	    w.write('\t');
+	}
+	if (cfd == null) {
+	    w.write('-');
+	} else {
+	    List <String> pkgs = cfd.getPackageNames();
+	    for (int i = 0; i < pkgs.size(); i++) {
+		if (i > 0) {
+		    w.write(' ');
+		}
+		w.write(pkgs.get(i));
+	    }
+	}
+	w.write('\n');
+    }
+
+    /*
+     * Walk up the leading directories of a path until one belongs to a
+     * package.
+     */
+    private ContentsFileDetail owningDirectory(String p) {
+	int i = p.lastIndexOf('/');
+	if (i < 0) {
+	    return null;
+	}
+	String dir = (i == 0) ? "/" : p.substring(0, i);
+	if (dir.equals(lastDir)) {
+	    return lastOwner;
+	}
+	ContentsFileDetail cfd = null;
+	String d = dir;
+	while (true) {
+	    cfd = cp.getFileDetail(d);
+	    if (cfd != null || d.length() == 1) {
+		break;
+	    }
+	    i = d.lastIndexOf('/');
+	    if (i < 0) {
+		break;
+	    }
+	    d = (i == 0) ? "/" : d.substring(0, i);
+	}
+	lastDir = dir;
+	lastOwner = cfd;
+	return cfd;
+    }
+
+    /*
+     * The contents file doesn't have trailing slashes on directories.
+     */
+    private static String trim(String path) {
+	int n = path.length();
+	while (n > 1 && path.charAt(n - 1) == '/') {
+	    n--;
+	}
+	return (n == path.length()) ? path : path.substring(0, n);
+    }
+
+    /**
+     * Return how many paths have been resolved.
+     *
+     * @return the number of paths looked up
+     */
+    public long getLookups() {
+	return lookups;
+    }
+
+    /**
+     * Write out any buffered output.
+     *
+     * @throws IOException if the output can't be written
+     */
+    public void flush() throws IOException {
+	w.flush();
+    }
+
+    private static void usage() {
+	System.err.println("Usage: owner [-p] [-t] [file|- ...]");
+	System.exit(1);
+    }
+
+    /**
+     * Report the packages owning paths read from the named files, or
+     * from standard input.
+     *
+     * @param args Command line arguments: -p to fall back to the longest
+     * owned directory, -t to report the rate of lookups on standard
+     * error, and the files to read, where - is standard input
+     *
+     * @throws IOException if the input can't be read or the output
+     * written
+     */
+    public static void main(String[] args) throws IOException {
+	boolean prefix = false;
+	boolean timing = false;
+	int i = 0;
+	for (; i < args.length && args[i].startsWith("-")
+		 && args[i].length() > 1; i++) {
+	    if ("-p".equals(args[i])) {
+		prefix = true;
+	    } else if ("-t".equals(args[i])) {
+		timing = true;
+	    } else if ("--".equals(args[i])) {
+		i++;
+		break;
+	    } else {
+		usage();
+	    }
+	}
+	long t0 = System.nanoTime();
+	PkgOwner po = new PkgOwner(prefix);
+	long t1 = System.nanoTime();
+	Charset cs = Charset.defaultCharset();
+	String unreadable = null;
+	// whatever happens, don't lose the results we already have
+	try {
+	    if (i == args.length) {
+		po.resolve(new InputStreamReader(System.in, cs));
+	    }
+	    for (; i < args.length; i++) {
+		if ("-".equals(args[i])) {
+		    po.resolve(new InputStreamReader(System.in, cs));
+		    continue;
+		}
+		File f = new File(args[i]);
+		if (!f.isFile() || !f.canRead()) {
+		    unreadable = args[i];
+		    break;
+		}
+		FileChannel fc = FileChannel.open(f.toPath(),
+					StandardOpenOption.READ);
+		try {
+		    // replace bad bytes, as reading standard input does
+		    po.resolve(Channels.newReader(fc, cs.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE),
+			BUFSIZE));
+		} finally {
+		    fc.close();
+		}
+	    }
+	} finally {
+	    po.flush();
+	}
+	if (unreadable != null) {
+	    System.err.println("Cannot read " + unreadable);
+	    System.exit(1);
+	}
+	if (timing) {
+	    long t2 = System.nanoTime();
+	    long n = po.getLookups();
+	    System.err.println("Loaded contents in " + (t1 - t0)/1000000
+			+ "ms, resolved " + n + " paths in "
+			+ (t2 - t1)/1000000 + "ms"
+			+ (t2 == t1 ? "" : ", " + n*1000000000L/(t2 - t1)
+			   + " paths/s"));
+	}
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * RemovalImpact - show which installed packages would be left without
+ * a prerequisite, directly or indirectly, if the given packages were
+ * removed, grouped by the cluster they belong to.
+ */
+public class RemovalImpact {
+
+    /**
+     * Report the impact of removing the named packages.
+     *
+     * @param pkgnames the names of the packages to be removed
+     */
+    public RemovalImpact(String[] pkgnames) {
+	PkgList plist = new PkgList();
+	for (String s : pkgnames) {
+	    if (plist.getPackage(s) == null) {
+		System.err.println("Package " + s + " is not installed");
+	    }
+	}
+	Set <SolarisPackage> affected =
+	    plist.getRemovalImpact(Arrays.asList(pkgnames));
+	System.out.println("Removing " + String.join(" ", pkgnames)
+			+ " would affect " + affected.size()
+			+ (affected.size() == 1 ? " package" : " packages"));
+	/*
+	 * Group the affected packages by cluster. A package that isn't in
+	 * any cluster is listed at the end.
+	 */
+	ClusterToc ctoc = new ClusterToc(plist);
+	Map <PackageCluster, Set <SolarisPackage>> byCluster =
+	    new TreeMap <PackageCluster, Set <SolarisPackage>> ();
+	Set <SolarisPackage> unclustered = new TreeSet <SolarisPackage> ();
+	for (SolarisPackage pkg : affected) {
+	    Set <PackageCluster> clusters = ctoc.containingClusters(pkg);
+	    if (clusters.isEmpty()) {
+		unclustered.add(pkg);
+	    }
+	    for (PackageCluster pc : clusters) {
+		Set <SolarisPackage> pkgs = byCluster.get(pc);
+		if (pkgs == null) {
+		    pkgs = new TreeSet <SolarisPackage> ();
+		    byCluster.put(pc, pkgs);
+		}
+		pkgs.add(pkg);
+	    }
+	}
+	for (Map.Entry <PackageCluster, Set <SolarisPackage>> me
+		 : byCluster.entrySet()) {
+	    PackageCluster pc = me.getKey();
+	    System.out.println(pc.getClusterName()
+		+ (pc.getName() == null ? "" : " - " + pc.getName())
+		+ " (" + me.getValue().size() + " of "
+		+ pc.getPackages().size() + ")");
+	    printPackages(me.getValue());
+	}
+	if (!unclustered.isEmpty()) {
+	    System.out.println("Not in any cluster ("
+			+ unclustered.size() + ")");
+	    printPackages(unclustered);
+	}
+    }
+
+    private void printPackages(Set <SolarisPackage> pkgs) {
+	for (SolarisPackage pkg : pkgs) {
+	    System.out.println("    " + pkg.getName() + " - "
+			+ pkg.getDescription());
+	}
+    }
+
+    /**
+     * Run the application.
+     *
+     * @param args Command line arguments, the names of the packages to
+     * be removed
+     */
+    public static void main(String args[]) {
+	if (args.length == 0) {
+	    System.err.println("Usage: removalimpact package [package ...]");
+	    System.exit(1);
+	}
+	new RemovalImpact(args);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Share parsed dependencies between packages in different package
+ * roots, such as the roots of many zones, that are the same version of
+ * the same package.
+ *
+ * Packages are taken to be identical if their PKG, VERSION, and PSTAMP
+ * are all the same, in which case the depend file is only read and
+ * parsed for the first of them, and the others are given the same sets.
+ * A package without a PSTAMP is always read. Each package still reads
+ * its own pkginfo, both to find out which version it is and because
+ * fields such as the install date and base directory are particular
+ * to each installation.
+ *
+ * The shared sets must not be modified. This may be used from many
+ * threads at once. As the roots are usually walked in the same order,
+ * threads often reach the same version together, so the first one to
+ * get there parses it and the others wait for it rather than parsing
+ * it too.
+ */
+public class SharedDependencies {
+
+    private final ConcurrentMap <String, FutureTask <Depends>> byVersion =
+	new ConcurrentHashMap <String, FutureTask <Depends>> ();
+    private final AtomicLong parsed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Load the dependencies of a package, either from an identical
+     * package already seen or by parsing its depend file.
+     *
+     * @param pkg the package to load
+     */
+    public void load(SolarisPackage pkg) {
+	String pstamp = pkg.getInfoItem("PSTAMP");
+	if (pstamp == null) {
+	    pkg.getDependencySet();
+	    parsed.incrementAndGet();
+	    return;
+	}
+	String key = pkg.getInfoItem("PKG") + "\n"
+	    + pkg.getInfoItem("VERSION") + "\n" + pstamp;
+	FutureTask <Depends> task = byVersion.get(key);
+	if (task == null) {
+	    final SolarisPackage first = pkg;
+	    FutureTask <Depends> mine = new FutureTask <Depends> (
+		new Callable <Depends> () {
+		    public Depends call() {
+			return new Depends(first);
+		    }
+		});
+	    task = byVersion.putIfAbsent(key, mine);
+	    if (task == null) {
+		mine.run();
+		parsed.incrementAndGet();
+		return;
+	    }
+	}
+	try {
+	    Depends d = task.get();
+	    pkg.restoreDepends(d.dependson, d.rdepends, d.incompatibles);
+	    shared.incrementAndGet();
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    pkg.getDependencySet();
+	    parsed.incrementAndGet();
+	} catch (ExecutionException ee) {
+	    pkg.getDependencySet();
+	    parsed.incrementAndGet();
+	}
+    }
+
+    /**
+     * Return how many depend files have been parsed.
+     *
+     * @return the number of packages whose depend file was read
+     */
+    public long getParsedCount() {
+	return parsed.get();
+    }
+
+    /**
+     * Return how many packages were given the dependencies of another.
+     *
+     * @return the number of packages whose depend file wasn't read
+     */
+    public long getSharedCount() {
+	return shared.get();
+    }
+
+    /*
+     * The parsed dependencies of a version of a package. The fields are
+     * final, so other threads always see the complete sets.
+     */
+    static class Depends {
+	final Set <String> dependson;
+	final Set <String> rdepends;
+	final Set <String> incompatibles;
+
+	Depends(SolarisPackage pkg) {
+	    dependson = pkg.getDependencySet();
+	    rdepends = pkg.getRDependencySet();
+	    incompatibles = pkg.getIncompatibleSet();
+	}
+    }
+}
@@ -97,9 +97,9 @@ public class SolarisPackage implements Comparable<SolarisPackage> {
      * Actually parse the depend file
      */
     private void parseDepend() {
-	dependson = new TreeSet <String> ();
-	rdepends = new TreeSet <String> ();
-	incompatibles = new TreeSet <String> ();
+	Set <String> dependson = new TreeSet <String> ();
+	Set <String> rdepends = new TreeSet <String> ();
+	Set <String> incompatibles = new TreeSet <String> ();
 	for (String s : getDepend()) {
 	    String[] ds = s.split("\\s+", 3);
 	    // Must have at least 2 words
@@ -114,6 +114,10 @@ public class SolarisPackage implements Comparable<SolarisPackage> {
 		}
 	    }
 	}
+	// only set the fields once they're complete
+	this.rdepends = rdepends;
+	this.incompatibles = incompatibles;
+	this.dependson = dependson;
     }
 
     /**
@@ -209,6 +213,44 @@ public class SolarisPackage implements Comparable<SolarisPackage> {
 	infomap = JumbleUtils.stringToPropMap(getInfo(), "\n");
     }
 
+    /**
+     * Read and parse the pkginfo and depend files now, rather than when
+     * they're first needed. This may be called from any thread, but
+     * whichever thread later uses this package must see the results,
+     * for example by waiting for the Future of the task that called it.
+     *
+     * @see PkgList#loadAll
+     */
+    public void load() {
+	if (infomap == null) {
+	    parseInfo();
+	}
+	if (dependson == null) {
+	    parseDepend();
+	}
+    }
+
+    /*
+     * Set the metadata saved by an earlier run, instead of reading the
+     * pkginfo and depend files.
+     */
+    void restore(Map <String, String> infomap, Set <String> dependson,
+		Set <String> rdepends, Set <String> incompatibles) {
+	this.infomap = infomap;
+	restoreDepends(dependson, rdepends, incompatibles);
+    }
+
+    /*
+     * Set the dependencies, for example those of an identical package
+     * in another package root, instead of reading the depend file.
+     */
+    void restoreDepends(Set <String> dependson, Set <String> rdepends,
+		Set <String> incompatibles) {
+	this.rdepends = rdepends;
+	this.incompatibles = incompatibles;
+	this.dependson = dependson;
+    }
+
     /**
      * Returns whether this package exists, by seeing whether the
      * directory corresponding to its name exists.
@@ -0,0 +1,119 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License, Version 1.0 only
+ * (the "License").  You may not use this file except in compliance
+ * with the License.
+ *
+ * You can obtain a copy of the license at usr/src/OPENSOLARIS.LICENSE
+ * or http://www.opensolaris.org/os/licensing.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at usr/src/OPENSOLARIS.LICENSE.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+package uk.co.petertribble.pkgview;
+
+/**
+ * Limit the rate at which bytes are read, or operations done, shared by
+ * all the threads doing them.
+ *
+ * Each caller reserves the next slot of time for the bytes it has read,
+ * and sleeps until that slot starts. Callers should ask for reasonably
+ * small amounts, a buffer at a time, so that the rate stays smooth.
+ *
+ * Up to a tenth of a second of unused time can be carried forward, so
+ * that the time spent processing the data between reservations isn't
+ * lost. Any more than that isn't saved up for a later burst. This is a
+ * token bucket holding a tenth of a second's worth of tokens, kept as
+ * the time at which the bucket would next be empty.
+ */
+public class ThroughputLimiter {
+
+    private static final long BURST_NANOS = 100000000L;
+
+    private final double nanosPerByte;
+    // the time at which the next reservation may start
+    private long next;
+
+    /**
+     * Create a limiter.
+     *
+     * @param perSecond the maximum rate, in bytes (or operations) per
+     * second
+     */
+    public ThroughputLimiter(long perSecond) {
+	if (perSecond <= 0) {
+	    throw new IllegalArgumentException("Invalid rate " + perSecond);
+	}
+	nanosPerByte = 1000000000.0/perSecond;
+	next = System.nanoTime();
+    }
+
+    /**
+     * Wait until the given number of bytes may be read. If interrupted,
+     * returns early with the interrupt status set.
+     *
+     * @param nbytes the number of bytes about to be, or just, read
+     */
+    public void acquire(long nbytes) {
+	long start;
+	synchronized (this) {
+	    start = Math.max(next, System.nanoTime() - BURST_NANOS);
+	    next = start + (long) (nbytes*nanosPerByte);
+	}
+	long wait = start - System.nanoTime();
+	if (wait > 0) {
+	    try {
+		Thread.sleep(wait/1000000, (int) (wait%1000000));
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    /**
+     * Parse a rate, given as a number of bytes (or operations) optionally
+     * followed by K, M, or G.
+     *
+     * @param s the rate to parse
+     *
+     * @return the rate per second
+     *
+     * @throws NumberFormatException if the rate isn't valid
+     */
+    public static long parseRate(String s) {
+	long mult = 1;
+	char c = s.isEmpty() ? ' '
+	    : Character.toUpperCase(s.charAt(s.length() - 1));
+	switch (c) {
+	    case 'K':
+		mult = 1024L;
+		break;
+	    case 'M':
+		mult = 1024L*1024L;
+		break;
+	    case 'G':
+		mult = 1024L*1024L*1024L;
+		break;
+	    default:
+		break;
+	}
+	if (mult > 1) {
+	    s = s.substring(0, s.length() - 1);
+	}
+	long l = Long.parseLong(s)*mult;
+	if (l <= 0) {
+	    throw new NumberFormatException("Invalid rate " + s);
+	}
+	return l;
+    }
+}